@@ -0,0 +1,248 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * Estimates the null distribution of each observed interaction without simulating (--approximate), for a 
+ * quick first look at a dataset.  A simulated complex of valency k holds k different features, drawn in 
+ * proportion to their occurrences n(a) in the dataset.  Such a complex is taken to contain feature a with 
+ * probability p(a) = 1 - exp(-r(k) n(a)), where r(k) is chosen so that these add up to k (Rosen's approximation
+ * for sampling without replacement), and both a and b with probability p(a) p(b) (1 - (1 - p(a)) (1 - p(b)) / d(k)), 
+ * where d(k) is the sum over the features of p (1 - p) (Hajek's approximation).  Summed over the complexes this 
+ * gives the expected simulated count of each pair, which is then taken to be Poisson distributed for the p-value.
+ * 
+ * The inclusion probabilities are tabulated once for each distinct number of occurrences and valency, so each 
+ * pair takes one pass over the distinct valencies.  The not added pool, which carries rejected features over 
+ * to later complexes, is ignored.  compare reports how well the approximation agrees with simulations.
+ * @author wingetts
+ *
+ */
+
+public class ApproximateNull {
+
+	private static final double[] MEAN_CLASSES = {0, 0.01, 0.1, 1, 10, 100};    //Lowest expected count of each class compared
+	private static final String[] MEAN_CLASS_LABELS = {"Below 0.01", "0.01-0.1", "0.1-1", "1-10", "10-100", "100 or more"};
+	private static final double[] LANCZOS = {76.18009172947146, -86.50532032941677, 24.01409824083091, 
+			-1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5};
+	
+	double[] expectedCounts;    //Indexed by PairIndex number
+	double[] pValues;
+	
+	
+	public ApproximateNull(Dataset dataset){
+		int[] featureCounts = dataset.features.getElementsCounter(dataset.dictionary.size());
+		int maxCount = 0;
+		for(int count : featureCounts){
+			maxCount = Math.max(maxCount, count);
+		}
+		int[] countFrequencies = new int[maxCount + 1];    //Number of features with each number of occurrences
+		for(int count : featureCounts){
+			countFrequencies[count]++;
+		}
+		int[] countColumns = new int[maxCount + 1];    //Column of the tables for each number of occurrences
+		int numberColumns = 0;
+		for(int count = 1; count <= maxCount; count++){
+			if(countFrequencies[count] > 0){
+				countColumns[count] = numberColumns++;
+			}
+		}
+		
+		int[] valencyCounts = dataset.valencies.getElementsCounter(dataset.valencies.getMaxElement() + 1);
+		int numberValencies = 0;    //Valencies of 2 or more (complexes of 1 feature form no pairs)
+		for(int valency = 2; valency < valencyCounts.length; valency++){
+			numberValencies += (valencyCounts[valency] > 0) ? 1 : 0;
+		}
+		int[] complexes = new int[numberValencies];    //Number of complexes of each of these valencies
+		double[] inclusions = new double[numberValencies * numberColumns];    //p(a), by valency (row) and number of occurrences (column)
+		double[] dependences = new double[numberValencies];    //1 / d(k)
+		int row = 0;
+		for(int valency = 2; valency < valencyCounts.length; valency++){
+			if(valencyCounts[valency] == 0){
+				continue;
+			}
+			complexes[row] = valencyCounts[valency];
+			double rate = findRate(valency, countFrequencies);
+			double spread = 0;
+			for(int count = 1; count <= maxCount; count++){
+				if(countFrequencies[count] > 0){
+					double inclusion = -Math.expm1(-rate * count);
+					inclusions[row * numberColumns + countColumns[count]] = inclusion;
+					spread += countFrequencies[count] * inclusion * (1 - inclusion);
+				}
+			}
+			dependences[row] = (spread > 0) ? 1 / spread : 0;
+			row++;
+		}
+		
+		PairIndex observedInteractions = dataset.observedInteractions;
+		expectedCounts = new double[observedInteractions.size()];
+		pValues = new double[observedInteractions.size()];
+		for(int index = 0; index < observedInteractions.size(); index++){
+			int columnA = countColumns[featureCounts[PairCounter.firstFeature(observedInteractions.keyAt(index))]];
+			int columnB = countColumns[featureCounts[PairCounter.secondFeature(observedInteractions.keyAt(index))]];
+			double expected = 0;
+			for(row = 0; row < numberValencies; row++){
+				double inclusionA = inclusions[row * numberColumns + columnA];
+				double inclusionB = inclusions[row * numberColumns + columnB];
+				double joint = inclusionA * inclusionB * (1 - (1 - inclusionA) * (1 - inclusionB) * dependences[row]);
+				expected += complexes[row] * Math.max(joint, 0);
+			}
+			expectedCounts[index] = expected;
+			pValues[index] = poissonUpperTail(observedInteractions.observedAt(index), expected);
+		}
+	}
+	
+	
+	//Finds r such that the sum over the features of 1 - exp(-r n(a)) is the valency, by Newton's method.  Starting 
+	//from r = k / N, where the sum is at most k, the iterations increase towards r as the sum is concave.
+	private static double findRate(int valency, int[] countFrequencies){
+		long distinctFeatures = 0;
+		long totalFeatures = 0;
+		for(int count = 1; count < countFrequencies.length; count++){
+			distinctFeatures += countFrequencies[count];
+			totalFeatures += (long)count * countFrequencies[count];
+		}
+		if(valency >= distinctFeatures){    //Every feature is in the complex
+			return Double.POSITIVE_INFINITY;
+		}
+		double rate = (double)valency / totalFeatures;
+		for(int iteration = 0; iteration < 100; iteration++){
+			double sum = 0;
+			double slope = 0;
+			for(int count = 1; count < countFrequencies.length; count++){
+				if(countFrequencies[count] > 0){
+					double miss = Math.exp(-rate * count);
+					sum += countFrequencies[count] * (1 - miss);
+					slope += countFrequencies[count] * count * miss;
+				}
+			}
+			if(valency - sum < valency * 1e-12){
+				break;
+			}
+			rate += (valency - sum) / slope;
+		}
+		return rate;
+	}
+	
+	
+	//P(X >= observed) for X Poisson distributed with the given mean, i.e. the regularised lower incomplete gamma 
+	//function P(observed, mean), from its series or continued fraction (as in Numerical Recipes)
+	static double poissonUpperTail(int observed, double mean){
+		if(observed <= 0){
+			return 1;
+		}
+		if(mean <= 0){
+			return 0;
+		}
+		double a = observed;
+		double logPrefactor = -mean + a * Math.log(mean) - logGamma(a);
+		if(mean < a + 1){
+			double term = 1 / a;
+			double sum = term;
+			for(int n = 1; n < 10000; n++){
+				term *= mean / (a + n);
+				sum += term;
+				if(Math.abs(term) < Math.abs(sum) * 1e-15){
+					break;
+				}
+			}
+			return Math.min(sum * Math.exp(logPrefactor), 1);
+		}
+		double b = mean + 1 - a;    //Continued fraction for the upper tail Q, by the modified Lentz method
+		double c = 1 / Double.MIN_NORMAL;
+		double d = 1 / b;
+		double h = d;
+		for(int n = 1; n < 10000; n++){
+			double an = -n * (n - a);
+			b += 2;
+			d = an * d + b;
+			if(Math.abs(d) < Double.MIN_NORMAL){
+				d = Double.MIN_NORMAL;
+			}
+			c = b + an / c;
+			if(Math.abs(c) < Double.MIN_NORMAL){
+				c = Double.MIN_NORMAL;
+			}
+			d = 1 / d;
+			double delta = d * c;
+			h *= delta;
+			if(Math.abs(delta - 1) < 1e-15){
+				break;
+			}
+		}
+		return Math.max(1 - Math.exp(logPrefactor) * h, 0);
+	}
+	
+	
+	private static double logGamma(double x){    //Lanczos approximation
+		double tmp = x + 5.5;
+		tmp -= (x + 0.5) * Math.log(tmp);
+		double series = 1.000000000190015;
+		double y = x;
+		for(double coefficient : LANCZOS){
+			series += coefficient / ++y;
+		}
+		return -tmp + Math.log(2.5066282746310005 * series / x);
+	}
+	
+	
+	//Prints how well the approximation agrees with the given simulations, for classes of interaction by expected count.
+	//A p-value agrees if within three standard errors (plus one simulation) of the simulated p-value.
+	public void compare(long[] simCumulativeInteractions, int[] compObsSimCounter, int sims){
+		int[] classInteractions = new int[MEAN_CLASSES.length];
+		double[] classExpected = new double[MEAN_CLASSES.length];
+		double[] classSimulated = new double[MEAN_CLASSES.length];
+		int[] classAgreeing = new int[MEAN_CLASSES.length];
+		for(int index = 0; index < expectedCounts.length; index++){
+			int meanClass = MEAN_CLASSES.length - 1;
+			while(expectedCounts[index] < MEAN_CLASSES[meanClass]){
+				meanClass--;
+			}
+			classInteractions[meanClass]++;
+			classExpected[meanClass] += expectedCounts[index];
+			classSimulated[meanClass] += (double)simCumulativeInteractions[index] / sims;
+			if(agrees(index, compObsSimCounter[index], sims)){
+				classAgreeing[meanClass]++;
+			}
+		}
+		
+		System.out.println("Approximation compared with " + sims + " simulations, by expected count:");
+		for(int meanClass = 0; meanClass < MEAN_CLASSES.length; meanClass++){
+			if(classInteractions[meanClass] == 0){
+				continue;
+			}
+			System.out.println("\t" + MEAN_CLASS_LABELS[meanClass] + ": " + classInteractions[meanClass] + " interactions, simulated/expected count " 
+					+ String.format("%.3f", classSimulated[meanClass] / classExpected[meanClass]) + ", " 
+					+ String.format("%.1f", 100.0 * classAgreeing[meanClass] / classInteractions[meanClass]) + "% of p-values agree");
+		}
+	}
+	
+	
+	boolean agrees(int index, int simScore, int sims){
+		double p = pValues[index];
+		return Math.abs((double)simScore / sims - p) <= 3 * Math.sqrt(p * (1 - p) / sims) + 1.0 / sims;
+	}
+
+}
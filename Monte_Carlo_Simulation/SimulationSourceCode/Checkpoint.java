@@ -0,0 +1,209 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+
+
+/**
+ * The state of a partly completed simulation run, written periodically so that a run which is 
+ * killed can be resumed (the --checkpoint and --resume options of Simulation).  As every simulation
+ * has its own random number stream (see RandomStreams), the seed and the number of simulations 
+ * completed are enough to carry on exactly where the run left off.
+ * 
+ * Layout (big-endian): magic, then the run settings (which must match when resuming), then the
+ * number of simulations completed and the tallies so far, then a flag and any NullStatistics.  Each 
+ * array is written as its length (-1 for null) followed by its elements.
+ * @author wingetts
+ *
+ */
+
+public class Checkpoint {
+
+	private static final long MAGIC = 0x4343434b50540001L;    //"CCCKPT", version 1
+	
+	//Run settings
+	long inputFileSize;
+	long inputFileModified;
+	int numberFeatureIds;
+	int numberInteractions;
+	int simsToRun;
+	int firstRunSimNumber;
+	long seed;
+	String rngAlgorithm;
+	int stopAfter;
+	boolean qc;
+	boolean createRandomDataset;
+	boolean exactSampling;
+	String randomString;
+	
+	//Progress
+	int simsCompleted;
+	long[] simCumulativeInteractions;
+	int[] compObsSimCounter;
+	int[] interactionSims;    //Only when stopping early: 0 for interactions not yet retired
+	int[] simFeaturesCounter;
+	int[] simFeaturesValGt1Counter;
+	int[] notAddedPoolResults;    //Only the first simsCompleted entries are written
+	NullStatistics nullStatistics;    //Only when collecting them (also compared as a setting)
+	
+	
+	//Writes to a temporary file which is then renamed, so a run killed while writing leaves the previous checkpoint intact
+	public void write(String checkpointFilename) throws IOException {
+		Path checkpointPath = Paths.get(checkpointFilename);
+		Path tempPath = Paths.get(checkpointFilename + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath), 1 << 16))) {
+			out.writeLong(MAGIC);
+			out.writeLong(inputFileSize);
+			out.writeLong(inputFileModified);
+			out.writeInt(numberFeatureIds);
+			out.writeInt(numberInteractions);
+			out.writeInt(simsToRun);
+			out.writeInt(firstRunSimNumber);
+			out.writeLong(seed);
+			out.writeUTF(rngAlgorithm);
+			out.writeInt(stopAfter);
+			out.writeBoolean(qc);
+			out.writeBoolean(createRandomDataset);
+			out.writeUTF(randomString);
+			out.writeBoolean(exactSampling);
+			
+			out.writeInt(simsCompleted);
+			out.writeInt(simCumulativeInteractions.length);
+			for(long value : simCumulativeInteractions){
+				out.writeLong(value);
+			}
+			writeInts(out, compObsSimCounter, compObsSimCounter.length);
+			writeInts(out, interactionSims, (interactionSims == null) ? 0 : interactionSims.length);
+			writeInts(out, simFeaturesCounter, simFeaturesCounter.length);
+			writeInts(out, simFeaturesValGt1Counter, simFeaturesValGt1Counter.length);
+			writeInts(out, notAddedPoolResults, simsCompleted);
+			out.writeBoolean(nullStatistics != null);
+			if(nullStatistics != null){
+				nullStatistics.write(out);
+			}
+		} catch (IOException ioe) {
+			Files.deleteIfExists(tempPath);
+			throw ioe;
+		}
+		Files.move(tempPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	
+	private static void writeInts(DataOutputStream out, int[] values, int length) throws IOException {
+		if(values == null){
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(length);
+		for(int i = 0; i < length; i++){
+			out.writeInt(values[i]);
+		}
+	}
+	
+	
+	public static Checkpoint read(String checkpointFilename) throws IOException {
+		Checkpoint checkpoint = new Checkpoint();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(checkpointFilename)), 1 << 16))) {
+			if(in.readLong() != MAGIC){
+				throw new IOException("'" + checkpointFilename + "' is not a checkpoint file");
+			}
+			checkpoint.inputFileSize = in.readLong();
+			checkpoint.inputFileModified = in.readLong();
+			checkpoint.numberFeatureIds = in.readInt();
+			checkpoint.numberInteractions = in.readInt();
+			checkpoint.simsToRun = in.readInt();
+			checkpoint.firstRunSimNumber = in.readInt();
+			checkpoint.seed = in.readLong();
+			checkpoint.rngAlgorithm = in.readUTF();
+			checkpoint.stopAfter = in.readInt();
+			checkpoint.qc = in.readBoolean();
+			checkpoint.createRandomDataset = in.readBoolean();
+			checkpoint.randomString = in.readUTF();
+			checkpoint.exactSampling = in.readBoolean();
+			
+			checkpoint.simsCompleted = in.readInt();
+			checkpoint.simCumulativeInteractions = new long[in.readInt()];
+			for(int i = 0; i < checkpoint.simCumulativeInteractions.length; i++){
+				checkpoint.simCumulativeInteractions[i] = in.readLong();
+			}
+			checkpoint.compObsSimCounter = readInts(in);
+			checkpoint.interactionSims = readInts(in);
+			checkpoint.simFeaturesCounter = readInts(in);
+			checkpoint.simFeaturesValGt1Counter = readInts(in);
+			checkpoint.notAddedPoolResults = readInts(in);
+			if(in.readBoolean()){
+				checkpoint.nullStatistics = NullStatistics.read(in);
+			}
+		}
+		return checkpoint;
+	}
+	
+	
+	private static int[] readInts(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0){
+			return null;
+		}
+		int[] values = new int[length];
+		for(int i = 0; i < length; i++){
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+	
+	
+	//Returns null if this checkpoint was made by a run with the same settings as the other, otherwise the first difference
+	public String compareSettings(Checkpoint other){
+		if( (inputFileSize != other.inputFileSize) || (inputFileModified != other.inputFileModified) ){
+			return "the input file has changed";
+		} else if( (numberFeatureIds != other.numberFeatureIds) || (numberInteractions != other.numberInteractions) ){
+			return "the input file was read differently";
+		} else if(simsToRun != other.simsToRun){
+			return "it was for " + simsToRun + " simulations";
+		} else if(firstRunSimNumber != other.firstRunSimNumber){
+			return "it started at simulation " + firstRunSimNumber;
+		} else if(stopAfter != other.stopAfter){
+			return "it used --stop-after " + stopAfter;
+		} else if( (qc != other.qc) || (createRandomDataset != other.createRandomDataset) ){
+			return "it used different qc/random options";
+		} else if(exactSampling != other.exactSampling){
+			return "it used --sampling " + (exactSampling ? "exact" : "pool");
+		} else if( (nullStatistics == null) ? (other.nullStatistics != null) : !nullStatistics.sameSettings(other.nullStatistics) ){
+			return "it used different --moments/--quantiles options";
+		}
+		return null;
+	}
+	
+}
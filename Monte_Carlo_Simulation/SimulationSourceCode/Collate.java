@@ -0,0 +1,179 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+
+
+/**
+ * Combines the partial-results files written by separate simulation jobs on the same input 
+ * (the --partial option of Simulation) into a single results table, as 
+ * collate_monte_carlo_results.pl does for the text results files.  The files are merged a 
+ * record at a time, so memory use depends on the number of files and features, not interactions.
+ * 
+ * The files must share a seed and have run different simulations, or the same simulations would be 
+ * counted more than once.  With --mixed-seeds, files from different seeds are also accepted.
+ * 
+ * Usage: Collate [--prefix PREFIX] [--mixed-seeds] [Partial results files]
+ * @author wingetts
+ *
+ */
+
+public class Collate {
+
+	public static void main(String[] args) {
+		
+		System.out.println("Collating Anaconda Monte Carlo Simulation results");
+		
+		String prefix = "";
+		boolean mixedSeeds = false;    //Accept files run with different seeds
+		LinkedHashSet<String> filenames = new LinkedHashSet<String>();    //Ignores repeated files, but keeps the order
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("--prefix")){
+				if(i + 1 == args.length){
+					System.err.println("Option --prefix requires a value");
+					System.exit(1);
+				}
+				prefix = args[++i];
+			} else if(args[i].equals("--mixed-seeds")){
+				mixedSeeds = true;
+			} else {
+				filenames.add(args[i]);
+			}
+		}
+		
+		if(filenames.isEmpty()){
+			System.err.println("Please specify a file to process");
+			System.exit(1);
+		}
+		
+		String outFilename = "simulation_collated_data.txt.gz";
+		if(!prefix.equals("")){
+			outFilename = prefix + "." + outFilename;
+		}
+		
+		//Order the files by their current record
+		PriorityQueue<PartialResults> queue = new PriorityQueue<PartialResults>(filenames.size());
+		List<PartialResults> files = new ArrayList<PartialResults>();
+		long totalSimsRun = 0;
+		try {
+			for(String filename : filenames){
+				System.out.println("\treading in '" + filename + "'");
+				PartialResults partialResults = new PartialResults(filename);
+				files.add(partialResults);
+				totalSimsRun += partialResults.simsRun;
+				if(partialResults.next()){
+					queue.add(partialResults);
+				}
+			}
+			checkSimulations(files, mixedSeeds);
+			System.out.println("Collating " + totalSimsRun + " simulations from " + filenames.size() + " file(s)");
+			
+			long interactionsWritten = 0;
+			BufferedOutputStream resultsFileOutStream = new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(outFilename), 1 << 16), 1 << 16);
+			resultsFileOutStream.write("Name_Feature\tName_Feature2\tObserved_Frequency\tSimulation_Average_Frequency\tObserved/Simulation\tSimulation_Score\tP_Value\n".getBytes());
+			
+			while(!queue.isEmpty()){
+				
+				//Take every file's record of the next interaction
+				PartialResults partialResults = queue.poll();
+				String feature1 = partialResults.getFirstName();
+				String feature2 = partialResults.getSecondName();
+				int observed = partialResults.observed;
+				long cumulative = 0;
+				long simScore = 0;
+				long sims = 0;
+				while(true){
+					if(partialResults.observed != observed){
+						System.err.println("Interaction " + feature1 + "\t" + feature2 + " has a different observed frequency in '" + partialResults.filename + "', were the files generated from the same input?");
+						System.exit(1);
+					}
+					cumulative += partialResults.cumulative;
+					simScore += partialResults.simScore;
+					sims += partialResults.sims;
+					if(partialResults.next()){
+						queue.add(partialResults);
+					}
+					
+					if( queue.isEmpty() || !queue.peek().getFirstName().equals(feature1) || !queue.peek().getSecondName().equals(feature2) ){
+						break;
+					}
+					partialResults = queue.poll();
+				}
+				
+				double simAvFreq = (double)cumulative / sims;
+				String obsSim = (simAvFreq == 0) ? "NA" : Double.toString(observed / simAvFreq);
+				double pVal = (double)simScore / sims;
+				String lineToPrint = feature1 + "\t" + feature2 + "\t" + Double.toString(observed) + "\t" + Double.toString(simAvFreq) + "\t";
+				lineToPrint = lineToPrint + obsSim + "\t" + simScore + "\t" + Double.toString(pVal) + "\n";
+				resultsFileOutStream.write(lineToPrint.getBytes());
+				interactionsWritten++;
+			}
+			resultsFileOutStream.close();
+			System.out.println("Written " + interactionsWritten + " interactions to '" + outFilename + "'");
+			
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			System.exit(1);
+		}
+		
+		System.out.println("Processing complete");
+	}
+	
+	
+	//Exits if the files were run with different seeds (unless mixedSeeds), or if any files run with the same seed 
+	//share simulations, as these would have drawn the same random numbers
+	private static void checkSimulations(List<PartialResults> files, boolean mixedSeeds){
+		List<PartialResults> sortedFiles = new ArrayList<PartialResults>(files);
+		sortedFiles.sort(Comparator.comparingLong((PartialResults partialResults) -> partialResults.seed)
+				.thenComparingInt(partialResults -> partialResults.firstRunSimNumber));
+		for(int i = 1; i < sortedFiles.size(); i++){
+			PartialResults previous = sortedFiles.get(i - 1);
+			PartialResults current = sortedFiles.get(i);
+			if(current.seed != previous.seed){
+				if(!mixedSeeds){
+					System.err.println("'" + previous.filename + "' and '" + current.filename + "' were run with different seeds (" 
+							+ previous.seed + " and " + current.seed + "), add --mixed-seeds to combine them");
+					System.exit(1);
+				}
+			} else if(previous.firstRunSimNumber + previous.simsRun > current.firstRunSimNumber){
+				System.err.println("'" + previous.filename + "' (simulations " + previous.firstRunSimNumber + " to " + (previous.firstRunSimNumber + previous.simsRun - 1) 
+						+ ") and '" + current.filename + "' (simulations " + current.firstRunSimNumber + " to " + (current.firstRunSimNumber + current.simsRun - 1) 
+						+ ") share simulations of seed " + current.seed + ", use --first to give each job different simulations");
+				System.exit(1);
+			}
+		}
+	}
+
+}
@@ -1,8 +1,6 @@
 package uk.ac.babraham.anacondamontecarlosimulation;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
 ###################################################################################
@@ -29,24 +27,55 @@ import java.util.HashMap;
 */
 
 /**
- * Describes the complex comprising multiple features
+ * Describes the complex comprising multiple features (held as FeatureDictionary ids)
+ * 
+ * The features are held in an int array, and whether a feature is already present is
+ * checked against a per-feature "stamp" which is only valid for the current contents of
+ * the complex.  Emptying the complex therefore just moves on to a new stamp, so re-using
+ * a complex creates no garbage.
  * @author wingetts
  * 
  */
 
 public class Complex {
 	
-	HashSet<String> featuresList = new HashSet<String>();    //For checking whether a features has been added
-	ArrayList<String> featuresArray = new ArrayList<String>();    //For generating interactions
+	int[] featuresArray;    //For generating interactions
+	int numberFeatures = 0;
+	int[] featureStamps;    //For checking whether a features has been added: equals currentStamp if present
+	int currentStamp = 1;
+	
+	//Scanning a partner list is sequential, whereas each PairIndex look-up is a random memory access, so scan lists up
+	//to this many times longer than the number of look-ups they replace
+	private static final int PARTNER_SCAN_FACTOR = 4;
+	private static final int PAIR_SCAN_LENGTH = 16;    //For a single pair, longer partner lists are looked up in the PairIndex instead
+	
+	
+	public Complex(){
+		this(16, 1024);
+	}
+	
+	
+	//The arrays grow if needed, but sizing them to the largest valency and the number of features avoids this
+	public Complex(int maxValency, int numberFeatureIds){
+		featuresArray = new int[Math.max(maxValency, 2)];
+		featureStamps = new int[Math.max(numberFeatureIds, 1)];
+	}
 	
 	
 	//Add feature (evaluates whether possible to add feature) 
-	public boolean addFeature(String feature){	
-		if(featuresList.contains(feature)){
+	public boolean addFeature(int feature){	
+		if(feature >= featureStamps.length){
+			featureStamps = Arrays.copyOf(featureStamps, Math.max(feature + 1, featureStamps.length * 2));
+		}
+		if(featureStamps[feature] == currentStamp){
 			return false;
 		} else {
-			featuresList.add(feature);	
-			featuresArray.add(feature);
+			featureStamps[feature] = currentStamp;
+			if(numberFeatures == featuresArray.length){
+				featuresArray = Arrays.copyOf(featuresArray, numberFeatures * 2);
+			}
+			featuresArray[numberFeatures] = feature;
+			numberFeatures++;
 			return true;
 		}
 	}
@@ -54,94 +83,132 @@ public class Complex {
 	
 	//Get valency
 	public int getValency(){
-		return featuresList.size();
+		return numberFeatures;
 	}
 	
 	
 	//Empty the complex
 	public void empty(){
-		featuresList.clear();
-		featuresArray.clear();
+		numberFeatures = 0;
+		currentStamp++;
+		if(currentStamp == 0){    //Stamp has wrapped round, so old stamps could match again
+			Arrays.fill(featureStamps, 0);
+			currentStamp = 1;
+		}
 	}
 	
 	
 	//Get pairwise interactions and increment an interactions counter as desired
-	public void interactionsCounterIncrementer(HashMap <String, Double> interactionsCounter){
-		int numberFeatures = featuresList.size();
-		//int numberInteractions = ( (numberFeatures * numberFeatures) - numberFeatures ) / 2;
-		//String[] interactions = new String[numberInteractions];
-		//int k = 0;
-		
-	//	System.out.println("Number features:" + numberFeatures + "\tNumber interactions:" + numberInteractions);
-		
-		
+	public void interactionsCounterIncrementer(PairCounter interactionsCounter){
 		for(int i = 0; i < (numberFeatures - 1); i++){    //Proceed to penultimate feature
 			for(int j = i + 1; j < numberFeatures; j++){    //Proceed to last feature	
-				
-				
-			//	System.out.println(i + " " + j);
-			//	System.out.println(featuresArray.get(i) + "\t"  + featuresArray.get(j) );
-				String interaction;
-				if( featuresArray.get(i).compareTo(featuresArray.get(j)) > 0 ) {
-					interaction = featuresArray.get(j) + "\t" + featuresArray.get(i);
-				} else {
-					interaction = featuresArray.get(i) + "\t" + featuresArray.get(j);
-				}
-				
-				if(interactionsCounter.containsKey(interaction)){    //Check this interaction already included in the counter
-					interactionsCounter.put(interaction, interactionsCounter.get(interaction) + 1);
-				} else {
-					interactionsCounter.put(interaction, 1d);				
-				}
-				//interactions[k] = interaction;
-				//k++;
+				interactionsCounter.increment(PairCounter.pairKey(featuresArray[i], featuresArray[j]));
 			}		
 		}
-	
 	}
 	
 	
 	
-	//Get pairwise interactions and increment an interactions counter as desired
-	public void recordSimInterationResults(HashMap <String, Double> simInteractionsDecrementer, HashMap <String, Integer> simCumulativeInteractions, HashMap <String, Integer>compObsSimCounter){
-		int numberFeatures = featuresList.size();
+	//Get pairwise interactions and increment an interactions counter as desired.
+	//The counters are indexed by the observed interactions' PairIndex numbers.  Only pairs that were observed are
+	//formed: for each feature, either its observed partners are checked for membership of the complex, or the
+	//other members are looked up in the PairIndex, whichever is fewer.
+	public void recordSimInterationResults(PartnerIndex partners, PairIndex observedInteractions, int[] simInteractionsDecrementer, long[] simCumulativeInteractions, int[] compObsSimCounter){
+		for(int i = 0; i < numberFeatures; i++){
+			int featureI = featuresArray[i];
+			int partnersStart = partners.partnerStarts[featureI];
+			int partnersEnd = partners.partnerEnds[featureI];
 			
-		for(int i = 0; i < (numberFeatures - 1); i++){    //Proceed to penultimate feature
-			for(int j = i + 1; j < numberFeatures; j++){    //Proceed to last feature	
-					
-				String interaction;
-				if( featuresArray.get(i).compareTo(featuresArray.get(j)) > 0 ) {
-					interaction = featuresArray.get(j) + "\t" + featuresArray.get(i);
-				} else {
-					interaction = featuresArray.get(i) + "\t" + featuresArray.get(j);
+			if(partnersEnd - partnersStart <= numberFeatures * PARTNER_SCAN_FACTOR){    //Check the observed partners (with higher ids)
+				for(int p = partnersStart; p < partnersEnd; p++){
+					if(featureStamps[partners.partnerIds[p]] == currentStamp){
+						recordSimInteraction(partners.pairNumbers[p], simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+					}
 				}
-					
-				if(simInteractionsDecrementer.containsKey(interaction)){    //Check this interaction already included in the counter
-					simInteractionsDecrementer.put(interaction, simInteractionsDecrementer.get(interaction) - 1);
-					simCumulativeInteractions.put(interaction, simCumulativeInteractions.get(interaction) + 1);
-					if(simInteractionsDecrementer.get(interaction) == 0){
-						compObsSimCounter.put(interaction, compObsSimCounter.get(interaction) + 1);    //Record result interaction occurs as much in simulation as observed
-						//simInteractionsDecrementer.remove(interaction);  //Don't do this - it should optimises code but produced biased graphs where the observed can never be more than the simulated
+			} else {    //Look up the other members (with higher ids)
+				for(int j = 0; j < numberFeatures; j++){
+					if(featuresArray[j] > featureI){
+						int index = observedInteractions.indexOf(PairCounter.pairKey(featureI, featuresArray[j]));
+						if(index >= 0){    //Check this interaction already included in the counter
+							recordSimInteraction(index, simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+						}
 					}
 				}
-			} 
- 
+			}
 		}		
 	}
 	
-	public void printFeatures(){    //Prints the complex features
+	
+	//As recordSimInterationResults, for a dimer that was never added to a Complex (see SimulationWorker)
+	public static void recordSimDimerResults(int featureA, int featureB, PartnerIndex partners, PairIndex observedInteractions, 
+			int[] simInteractionsDecrementer, long[] simCumulativeInteractions, int[] compObsSimCounter){
+		int index = findPair(Math.min(featureA, featureB), Math.max(featureA, featureB), partners, observedInteractions);
+		if(index >= 0){
+			recordSimInteraction(index, simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+		}
+	}
+	
+	
+	//As recordSimInterationResults, for a trimer that was never added to a Complex
+	public static void recordSimTrimerResults(int featureA, int featureB, int featureC, PartnerIndex partners, PairIndex observedInteractions, 
+			int[] simInteractionsDecrementer, long[] simCumulativeInteractions, int[] compObsSimCounter){
+		int low = Math.min(featureA, Math.min(featureB, featureC));
+		int high = Math.max(featureA, Math.max(featureB, featureC));
+		int middle = featureA ^ featureB ^ featureC ^ low ^ high;    //The features are all different
 		
-		int numberFeatures = featuresArray.size();
+		int index = findPair(low, middle, partners, observedInteractions);
+		if(index >= 0){
+			recordSimInteraction(index, simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+		}
+		index = findPair(low, high, partners, observedInteractions);
+		if(index >= 0){
+			recordSimInteraction(index, simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+		}
+		index = findPair(middle, high, partners, observedInteractions);
+		if(index >= 0){
+			recordSimInteraction(index, simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+		}
+	}
+	
+	
+	//Returns the index of the pair (low < high), or -1 if it was not observed.  Short partner lists are scanned up to
+	//high (partners are in ascending order).  As in recordSimInterationResults, a retired pair may be found by the 
+	//look-up but not by the scan, which does not matter as the tallies of retired pairs are not merged.
+	private static int findPair(int low, int high, PartnerIndex partners, PairIndex observedInteractions){
+		int partnersStart = partners.partnerStarts[low];
+		int partnersEnd = partners.partnerEnds[low];
+		if(partnersEnd - partnersStart > PAIR_SCAN_LENGTH){
+			return observedInteractions.indexOf(PairCounter.pairKey(low, high));
+		}
+		for(int p = partnersStart; p < partnersEnd; p++){
+			int partnerId = partners.partnerIds[p];
+			if(partnerId >= high){
+				return (partnerId == high) ? partners.pairNumbers[p] : -1;
+			}
+		}
+		return -1;
+	}
+	
+	
+	private static void recordSimInteraction(int index, int[] simInteractionsDecrementer, long[] simCumulativeInteractions, int[] compObsSimCounter){
+		simCumulativeInteractions[index]++;
+		if(--simInteractionsDecrementer[index] == 0){
+			compObsSimCounter[index]++;    //Record result interaction occurs as much in simulation as observed
+			//Don't remove the interaction from the decrementer - it should optimises code but produced biased graphs where the observed can never be more than the simulated
+		}
+	}
+	
+	public void printFeatures(FeatureDictionary dictionary){    //Prints the complex features
 		for(int i = 0; i < numberFeatures ; i++){
-			System.out.println(featuresArray.get(i));			
+			System.out.println(dictionary.getName(featuresArray[i]));			
 		}	
 	}
 	
 	
 	public void addToDistribution(Distribution features, int min){    //Takes a distribution, and adds features if the complex valency meets threshold minimum
 		if (this.getValency() >= min){
-			for( int i = 0; i < featuresArray.size(); i++ ){
-				features.addElement(featuresArray.get(i));			
+			for( int i = 0; i < numberFeatures; i++ ){
+				features.addElement(featuresArray[i]);			
 			}	
 		}	
 	}
@@ -151,4 +218,3 @@ public class Complex {
 	
 	
 
-
@@ -0,0 +1,66 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.nio.IntBuffer;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+
+/**
+ * The data read in from an input file (or a snapshot of one): the feature dictionary, the
+ * distributions sampled by the simulation and the observed interactions.
+ * 
+ * The complexes themselves are only kept if requested, in compressed sparse row (CSR) layout:
+ * complex i comprises the feature ids complexFeatures[complexStarts[i]] to 
+ * complexFeatures[complexStarts[i + 1] - 1].  When read from a snapshot these buffers are 
+ * memory-mapped rather than held on the heap.
+ * @author wingetts
+ *
+ */
+
+public class Dataset {
+
+	FeatureDictionary dictionary = new FeatureDictionary();
+	Distribution features = new Distribution();
+	Distribution featuresValGt1 = new Distribution();   //Features with valencies greater than 1
+	Distribution valencies = new Distribution();
+	PairIndex observedInteractions;    //Observed interactions and their counts
+	boolean indexPairs = true;    //If not, observedInteractions is left null when reading (see PairPartitions)
+
+	boolean keepComplexes;
+	int numberComplexes = 0;
+	IntBuffer complexStarts;
+	IntBuffer complexFeatures;
+
+
+	public Dataset(){
+		this(false);
+	}
+
+
+	public Dataset(boolean keepComplexes){
+		this.keepComplexes = keepComplexes;
+	}
+
+}
@@ -0,0 +1,168 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * Keeps the datasets read in by the simulation server in memory, so later jobs on the same input 
+ * file skip reading it.  Datasets are held in least recently used order, and the least recently used
+ * are evicted once their estimated sizes exceed the budget (the most recently used is always kept, 
+ * even if larger than the budget on its own).  An entry is read again if its file has changed.
+ * 
+ * Datasets are read with the QC distributions, so they may be used by jobs with or without QC.
+ * @author wingetts
+ *
+ */
+
+public class DatasetCache {
+
+	private final long budgetBytes;
+	private final int threads;    //Used to parse the input files
+	private final LinkedHashMap<String, CachedDataset> datasets = new LinkedHashMap<String, CachedDataset>(16, 0.75f, true);    //In access order
+	private long totalBytes = 0;
+	private int hits = 0;
+	private int misses = 0;
+	
+	
+	private static class CachedDataset {
+		final Dataset dataset;
+		final long fileLength;
+		final long fileModified;
+		final long estimatedBytes;
+		
+		CachedDataset(Dataset dataset, long fileLength, long fileModified){
+			this.dataset = dataset;
+			this.fileLength = fileLength;
+			this.fileModified = fileModified;
+			estimatedBytes = estimateBytes(dataset);
+		}
+	}
+	
+	
+	public DatasetCache(long budgetBytes, int threads){
+		this.budgetBytes = budgetBytes;
+		this.threads = threads;
+	}
+	
+	
+	//Returns the dataset for the input file, reading it in if it is not cached or has changed since it was read.  
+	//The file is read without holding the lock, so the cache can still be listed meanwhile.
+	public Dataset get(String inputFilename){
+		File inputFile = new File(inputFilename);
+		String key = inputFile.getAbsolutePath();
+		synchronized(this){
+			CachedDataset cached = datasets.get(key);
+			if( (cached != null) && (cached.fileLength == inputFile.length()) && (cached.fileModified == inputFile.lastModified()) ){
+				hits++;
+				System.out.println("Using cached dataset " + key);
+				return cached.dataset;
+			}
+			if(cached != null){
+				System.out.println("Input file " + key + " has changed, reading it in again");
+				remove(key);
+			}
+			misses++;
+		}
+		
+		long fileLength = inputFile.length();
+		long fileModified = inputFile.lastModified();
+		System.out.println("Reading in file " + inputFilename);
+		Dataset dataset = new Dataset();
+		FileIO dataIO = new FileIO();
+		dataIO.setExitOnError(false);    //A bad input file fails its job, rather than the server
+		dataIO.inputData(inputFilename, dataset, true, threads);
+		
+		synchronized(this){
+			CachedDataset cached = new CachedDataset(dataset, fileLength, fileModified);
+			CachedDataset replaced = datasets.put(key, cached);
+			if(replaced != null){    //Read in by another job meanwhile
+				totalBytes -= replaced.estimatedBytes;
+			}
+			totalBytes += cached.estimatedBytes;
+			evict();
+		}
+		return dataset;
+	}
+	
+	
+	//Drops the least recently used datasets until within the budget (a running job keeps its dataset until finished)
+	private void evict(){
+		Iterator<Map.Entry<String, CachedDataset>> entries = datasets.entrySet().iterator();
+		while( (totalBytes > budgetBytes) && (datasets.size() > 1) ){
+			Map.Entry<String, CachedDataset> eldest = entries.next();
+			totalBytes -= eldest.getValue().estimatedBytes;
+			entries.remove();
+			System.out.println("Evicted dataset " + eldest.getKey() + " from the cache");
+		}
+	}
+	
+	
+	private void remove(String key){
+		CachedDataset removed = datasets.remove(key);
+		if(removed != null){
+			totalBytes -= removed.estimatedBytes;
+		}
+	}
+	
+	
+	//Approximate heap used by a dataset, from the sizes of its arrays: the pair index, the distributions 
+	//(including the QC ones), the dictionary and any complexes held on the heap
+	static long estimateBytes(Dataset dataset){
+		long bytes = dataset.dictionary.memoryBytes() + dataset.features.memoryBytes() + dataset.featuresValGt1.memoryBytes() 
+				+ dataset.valencies.memoryBytes();
+		if(dataset.observedInteractions != null){
+			bytes += dataset.observedInteractions.memoryBytes();
+		}
+		if( (dataset.complexStarts != null) && dataset.complexStarts.hasArray() ){
+			bytes += (dataset.complexStarts.capacity() + dataset.complexFeatures.capacity()) * 4L;
+		}
+		return bytes;
+	}
+	
+	
+	//The budget, hit counts and cached datasets (most recently used last) as JSON
+	public synchronized String toJson(){
+		StringBuilder json = new StringBuilder();
+		json.append("{\n  \"budget_bytes\": " + budgetBytes + ",\n  \"used_bytes\": " + totalBytes);
+		json.append(",\n  \"hits\": " + hits + ",\n  \"misses\": " + misses + ",\n  \"datasets\": [");
+		List<String> entries = new ArrayList<String>();
+		for(Map.Entry<String, CachedDataset> entry : datasets.entrySet()){
+			Dataset dataset = entry.getValue().dataset;
+			entries.add("\n    {\"input_file\": \"" + SimulationServer.escape(entry.getKey()) + "\", \"features\": " + dataset.dictionary.size() 
+					+ ", \"complexes\": " + dataset.valencies.getSize() + ", \"interactions\": " + dataset.observedInteractions.size() 
+					+ ", \"estimated_bytes\": " + entry.getValue().estimatedBytes + "}");
+		}
+		json.append(String.join(",", entries));
+		json.append(entries.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+		return json.toString();
+	}
+
+}
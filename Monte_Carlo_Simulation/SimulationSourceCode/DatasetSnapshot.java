@@ -0,0 +1,237 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+
+/**
+ * Reads and writes a binary snapshot of a Dataset, so that repeated simulation jobs on the same 
+ * input file do not need to parse the text again.  The snapshot is memory-mapped when read.
+ * 
+ * Layout (big-endian):
+ * 	header: magic, input file size, input file last-modified time, number of features, 
+ * 		number of complexes, number of complex entries, number of pairs, then the offset of each section
+ * 	names: for each feature id, the length of the UTF-8 name then its bytes
+ * 	features, featuresValGt1 and valencies histograms: number of distinct values, then value/count pairs
+ * 	complexStarts: int[number of complexes + 1]
+ * 	complexFeatures: int[number of complex entries]
+ * 	pairs: long[number of pairs] keys (ascending), then int[number of pairs] observed counts
+ * 
+ * Each section is mapped separately, so may not exceed 2GB.
+ * @author wingetts
+ *
+ */
+
+public class DatasetSnapshot {
+
+	private static final long MAGIC = 0x4343534e41500001L;    //"CCSNAP", version 1
+	private static final int SECTIONS = 7;
+	private static final int HEADER_SIZE = (8 * 3) + (4 * 2) + 8 + 4 + (8 * (SECTIONS + 1));
+
+
+	public static String getDefaultFilename(String inputFilename){
+		return inputFilename + ".MonteCarloSnapshot.bin";
+	}
+
+
+	//Writes the snapshot to a temporary file which is then renamed, so other jobs never see a partial snapshot.
+	//The dataset needs to have kept its complexes.
+	public static void write(String snapshotFilename, String inputFilename, Dataset dataset) throws IOException {
+		Path snapshotPath = Paths.get(snapshotFilename);
+		Path tempPath = Paths.get(snapshotFilename + ".tmp." + Utilities.makeRandomString());
+		File inputFile = new File(inputFilename);
+		long[] sectionOffsets = new long[SECTIONS + 1];
+
+		try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			channel.position(HEADER_SIZE);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+			int section = 0;
+
+			sectionOffsets[section++] = channel.position();    //Names
+			for(int id = 0; id < dataset.dictionary.size(); id++){
+				byte[] name = dataset.dictionary.getName(id).getBytes(StandardCharsets.UTF_8);
+				out.writeInt(name.length);
+				out.write(name);
+			}
+
+			int[] valGt1Counts = new int[dataset.dictionary.size()];
+			for(int complex = 0; complex < dataset.numberComplexes; complex++){
+				int start = dataset.complexStarts.get(complex);
+				int end = dataset.complexStarts.get(complex + 1);
+				if(end - start > 1){
+					for(int i = start; i < end; i++){
+						valGt1Counts[dataset.complexFeatures.get(i)]++;
+					}
+				}
+			}
+
+			Distribution[] histograms = {dataset.features, null, dataset.valencies};
+			for(Distribution histogram : histograms){
+				out.flush();
+				sectionOffsets[section++] = channel.position();
+				int[] counts = (histogram == null) ? valGt1Counts : histogram.getElementsCounter(histogram.getMaxElement() + 1);
+				int distinct = 0;
+				for(int count : counts){
+					distinct += (count > 0) ? 1 : 0;
+				}
+				out.writeInt(distinct);
+				for(int value = 0; value < counts.length; value++){
+					if(counts[value] > 0){
+						out.writeInt(value);
+						out.writeInt(counts[value]);
+					}
+				}
+			}
+
+			out.flush();
+			sectionOffsets[section++] = channel.position();    //complexStarts
+			for(int i = 0; i <= dataset.numberComplexes; i++){
+				out.writeInt(dataset.complexStarts.get(i));
+			}
+			out.flush();
+			sectionOffsets[section++] = channel.position();    //complexFeatures
+			for(int i = 0; i < dataset.complexFeatures.limit(); i++){
+				out.writeInt(dataset.complexFeatures.get(i));
+			}
+
+			PairIndex observed = dataset.observedInteractions;
+			out.flush();
+			sectionOffsets[section++] = channel.position();    //Pairs
+			for(int i = 0; i < observed.size(); i++){
+				out.writeLong(observed.keyAt(i));
+			}
+			for(int i = 0; i < observed.size(); i++){
+				out.writeInt(observed.observedAt(i));
+			}
+			out.flush();
+			sectionOffsets[section] = channel.position();    //End of file
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putLong(MAGIC);
+			header.putLong(inputFile.length());
+			header.putLong(inputFile.lastModified());
+			header.putInt(dataset.dictionary.size());
+			header.putInt(dataset.numberComplexes);
+			header.putLong(dataset.complexFeatures.limit());
+			header.putInt(observed.size());
+			for(long offset : sectionOffsets){
+				header.putLong(offset);
+			}
+			header.flip();
+			channel.write(header, 0);
+		} catch (IOException ioe) {
+			Files.deleteIfExists(tempPath);
+			throw ioe;
+		}
+		Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+	//Fills the (empty) dataset from the snapshot, leaving out the pairs unless the dataset indexes them.  Returns false, leaving the dataset unchanged, if the snapshot
+	//does not exist or was not made from the current version of the input file.
+	public static boolean read(String snapshotFilename, String inputFilename, Dataset dataset) throws IOException {
+		Path snapshotPath = Paths.get(snapshotFilename);
+		if(!Files.exists(snapshotPath)){
+			return false;
+		}
+		File inputFile = new File(inputFilename);
+
+		try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+			if(channel.size() < HEADER_SIZE){
+				return false;
+			}
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if( (header.getLong() != MAGIC) || (header.getLong() != inputFile.length()) || (header.getLong() != inputFile.lastModified()) ){
+				return false;
+			}
+			int numberFeatures = header.getInt();
+			int numberComplexes = header.getInt();
+			header.getLong();    //Number of complex entries (implied by the section size)
+			int numberPairs = header.getInt();
+			long[] sectionOffsets = new long[SECTIONS + 1];
+			for(int i = 0; i <= SECTIONS; i++){
+				sectionOffsets[i] = header.getLong();
+			}
+
+			int section = 0;
+			ByteBuffer names = mapSection(channel, sectionOffsets, section++);
+			for(int id = 0; id < numberFeatures; id++){
+				byte[] name = new byte[names.getInt()];
+				names.get(name);
+				dataset.dictionary.getId(new String(name, StandardCharsets.UTF_8));
+			}
+
+			Distribution[] histograms = {dataset.features, dataset.featuresValGt1, dataset.valencies};
+			for(Distribution histogram : histograms){
+				ByteBuffer counts = mapSection(channel, sectionOffsets, section++);
+				int distinct = counts.getInt();
+				for(int i = 0; i < distinct; i++){
+					histogram.addElement(counts.getInt(), counts.getInt());
+				}
+				histogram.activateElements();
+			}
+
+			dataset.numberComplexes = numberComplexes;
+			dataset.complexStarts = mapSection(channel, sectionOffsets, section++).asIntBuffer();
+			dataset.complexFeatures = mapSection(channel, sectionOffsets, section++).asIntBuffer();
+			dataset.keepComplexes = true;
+
+			if(!dataset.indexPairs){
+				return true;
+			}
+			ByteBuffer pairs = mapSection(channel, sectionOffsets, section++);
+			long[] pairKeys = new long[numberPairs];
+			int[] observedCounts = new int[numberPairs];
+			pairs.asLongBuffer().get(pairKeys);
+			pairs.position(numberPairs * 8);
+			pairs.asIntBuffer().get(observedCounts);
+			dataset.observedInteractions = new PairIndex(pairKeys, observedCounts);
+		}
+		return true;
+	}
+
+
+	private static ByteBuffer mapSection(FileChannel channel, long[] sectionOffsets, int section) throws IOException {
+		long size = sectionOffsets[section + 1] - sectionOffsets[section];
+		if(size > Integer.MAX_VALUE){
+			throw new IOException("Snapshot section " + section + " is larger than 2GB");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, sectionOffsets[section], size);
+	}
+
+}
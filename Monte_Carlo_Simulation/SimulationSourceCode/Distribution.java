@@ -1,8 +1,7 @@
 package uk.ac.babraham.anacondamontecarlosimulation;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.HashSet;
+import java.util.random.RandomGenerator;
 
 
 /**
@@ -34,77 +33,181 @@ import java.util.HashSet;
  * 
  * @author wingetts
  * 
- * This class describes a distribution. Data may be added sequentially, which may then be stored in an array.
- * Elements may then be randomly selected from the array (the item is not removed after selecting
+ * This class describes a distribution of non-negative integers (feature ids or valencies). Data may be added sequentially,
+ * which is tallied as a histogram, so each distinct value is stored once together with its count (rather than once per observation).
+ * Elements may then be randomly selected (the item is not removed after selecting) in constant time using Vose's alias method:
+ * each of the n distinct values owns a column of the table, which holds a probability of returning that value and an alias
+ * value to return otherwise.
  */
 
 public class Distribution {
 	
-	ArrayList<String> tempElements = new ArrayList<String>();
-	String[] elements;
-	int totalElements;
-	Random rand = new Random();
+	int[] elementCounts = new int[16];    //Histogram: elementCounts[value] = number of times value added
+	long totalElements;
 	
+	int[] values;    //Distinct values, once activated
+	int[] counts;    //Number of times each distinct value was added
+	long[] aliasThresholds;    //Probability of selecting the column's own value (as an unsigned fraction of 2^64)...
+	int[] aliases;    //...otherwise select the value in this column (index into values)
+	RandomGenerator rand = new Random();
 	
-	public void addElement(String element){  //Adds an element to the temporary array
-		tempElements.add(element);
+	
+	public void addElement(int element){  //Adds an element to the histogram
+		addElement(element, 1);
+	}
+	
+	
+	public void addElement(int element, int count){  //Adds an element to the histogram count times
+		if(element >= elementCounts.length){
+			elementCounts = Arrays.copyOf(elementCounts, Math.max(element + 1, elementCounts.length * 2));
+		}
+		elementCounts[element] += count;
+		totalElements += count;
 	}
 	
 	
-	public void activateElements() {    //Create the array from which random features may be selected 
-		totalElements = tempElements.size();
-		elements = new String[totalElements];   //Set array size			
-		for(int i = 0; i < totalElements; i++){
-			elements[i] = tempElements.get(i);
+	public void activateElements() {    //Create the alias table from which random elements may be selected 
+		int distinct = 0;
+		for(int count : elementCounts){
+			if(count > 0){
+				distinct++;
+			}
 		}
-		tempElements.clear();    //Empty arraylist
+		
+		values = new int[distinct];
+		counts = new int[distinct];
+		int i = 0;
+		for(int value = 0; value < elementCounts.length; value++){
+			if(elementCounts[value] > 0){
+				values[i] = value;
+				counts[i] = elementCounts[value];
+				i++;
+			}
+		}
+		elementCounts = new int[16];    //Empty histogram
+		buildAliasTable();
 	}
 	
 	
-	public String getRandomElement(){
-		return elements[rand.nextInt(totalElements)];
+	//Vose's alias method: scale each probability by n, then pair every column below 1 ("small") with 
+	//a column above 1 ("large") which donates the remainder
+	private void buildAliasTable(){
+		int n = values.length;
+		double[] aliasProbabilities = new double[n];
+		aliases = new int[n];
+		
+		double[] scaled = new double[n];
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int smallSize = 0;
+		int largeSize = 0;
+		for(int i = 0; i < n; i++){
+			scaled[i] = (double)counts[i] * n / totalElements;
+			if(scaled[i] < 1){
+				small[smallSize++] = i;
+			} else {
+				large[largeSize++] = i;
+			}
+		}
+		
+		while( (smallSize > 0) && (largeSize > 0) ){
+			int less = small[--smallSize];
+			int more = large[--largeSize];
+			aliasProbabilities[less] = scaled[less];
+			aliases[less] = more;
+			scaled[more] = (scaled[more] + scaled[less]) - 1;
+			if(scaled[more] < 1){
+				small[smallSize++] = more;
+			} else {
+				large[largeSize++] = more;
+			}
+		}
+		
+		while(largeSize > 0){    //Remaining columns (and any left over from rounding errors) are always selected
+			int more = large[--largeSize];
+			aliasProbabilities[more] = 1;
+			aliases[more] = more;
+		}
+		while(smallSize > 0){
+			int less = small[--smallSize];
+			aliasProbabilities[less] = 1;
+			aliases[less] = less;
+		}
+		
+		aliasThresholds = new long[n];
+		for(int i = 0; i < n; i++){
+			if(aliasProbabilities[i] < 1){
+				aliasThresholds[i] = (long)(aliasProbabilities[i] * 0x1p63) << 1;
+			} else {
+				aliasThresholds[i] = -1L;    //Largest unsigned value (the column's alias is itself anyway)
+			}
+		}
 	}
 	
 	
-	public String[] getElements(){    //Return all the elements as an array
-		return elements;
+	public int getRandomElement(){
+		return getRandomElement(rand);
 	}
 	
-	public String[] getUniqueElements(){    //Return a unique list of elements as an array
-		HashSet<String> uniqueElements = new HashSet<String>();
-		for(String element: elements){
-			uniqueElements.add(element);
+	
+	//Select using a caller-owned generator (e.g. one per simulation).  A single random long picks both the column 
+	//(the high 64 bits of random * n) and the fraction within it (the low 64 bits) that decides between the 
+	//column's value and its alias.
+	public int getRandomElement(RandomGenerator rand){
+		long random = rand.nextLong();
+		int n = values.length;
+		int column = (int)(Math.multiplyHigh(random, n) + ((random >> 63) & n));    //Unsigned high bits
+		if(Long.compareUnsigned(random * n, aliasThresholds[column]) < 0){
+			return values[column];
+		} else {
+			return values[aliases[column]];
 		}
-		
-		String[] uniqueElementsArray = uniqueElements.toArray( new String[uniqueElements.size()] );
-		return uniqueElementsArray;
 	}
 	
 	
-	public HashMap <String, Integer> getElementsCounter(){    //Return an HashMap tally of the elements->count
-		HashMap <String, Integer> elementsCounter = new HashMap <String, Integer>();
-		
-		for(String element : elements){
-			if( elementsCounter.containsKey(element) ){
-				elementsCounter.put(element, elementsCounter.get(element) + 1);
-			} else {
-				elementsCounter.put(element, 1);
+	public int[] getUniqueElements(){    //Return a unique list of elements as an array (in ascending order)
+		return values.clone();
+	}
+	
+	
+	public int[] getElementsCounter(int numberValues){    //Return a tally of the elements, indexed by element (elements range from 0 to numberValues - 1)
+		int[] elementsCounter = new int[numberValues];
+		if(values != null){
+			for(int i = 0; i < values.length; i++){
+				elementsCounter[values[i]] = counts[i];
 			}
-		}		
+		}
 		return elementsCounter;	
 	}
 	
 	
 	
 	public void listsElements(){
-		for(String element : elements){
-			System.out.println(element);
+		for(int i = 0; i < values.length; i++){
+			System.out.println(values[i] + "\t" + counts[i]);
 		}	
 	}
 	
 	
-	public int getSize(){
-		return totalElements;
+	public int getMaxElement(){
+		if(values.length == 0){
+			return 0;
+		}
+		return values[values.length - 1];
+	}
+	
+	
+	public int getSize(){    //Number of elements added (not the number of distinct elements)
+		return (int)totalElements;
+	}
+	
+	
+	public long memoryBytes(){    //Approximate heap used by the histogram and the alias table, in bytes
+		long bytes = elementCounts.length * 4L;
+		if(values != null){
+			bytes += (values.length * 4L) + (counts.length * 4L) + (aliasThresholds.length * 8L) + (aliases.length * 4L);
+		}
+		return bytes;
 	}
 	
 }
@@ -0,0 +1,240 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * Counts the observed interactions out of core, for when a few very large complexes form more pairs than 
+ * a PairCounter could hold (see --pair-memory).  The pair keys (see PairCounter.pairKey) of each complex 
+ * are appended to a buffer of fixed size.  When it is full, the buffer is sorted and written to a temporary 
+ * run file as ascending distinct keys with their counts.  The runs are then merged into the sorted keys 
+ * and counts of the PairIndex, which is the only structure the size of the distinct pairs.
+ * 
+ * The number of pairs formed by complexes of each valency class is reported as the counting progresses.
+ * @author wingetts
+ *
+ */
+
+public class ExternalPairCounter {
+
+	private static final int[] VALENCY_CLASSES = {2, 10, 100, 1000};    //Lowest valency of each class reported
+	
+	private final File spillDirectory;
+	private long[] buffer;
+	private int filled = 0;
+	private final List<File> runFiles = new ArrayList<File>();
+	
+	private long pairOccurrences = 0;
+	private final long[] classComplexes = new long[VALENCY_CLASSES.length];
+	private final long[] classPairs = new long[VALENCY_CLASSES.length];
+	private int maxValency = 0;
+	
+	
+	//The buffer holds up to bufferMegabytes of pair keys, and the runs are written to spillDirectory
+	public ExternalPairCounter(int bufferMegabytes, File spillDirectory){
+		buffer = new long[(int)Math.min((long)bufferMegabytes * 1024 * 1024 / 8, Integer.MAX_VALUE - 8)];
+		this.spillDirectory = spillDirectory;
+	}
+	
+	
+	public void addComplex(int[] features, int valency){
+		if(valency < 2){
+			return;
+		}
+		long pairs = (long)valency * (valency - 1) / 2;
+		int valencyClass = VALENCY_CLASSES.length - 1;
+		while(valency < VALENCY_CLASSES[valencyClass]){
+			valencyClass--;
+		}
+		classComplexes[valencyClass]++;
+		classPairs[valencyClass] += pairs;
+		pairOccurrences += pairs;
+		maxValency = Math.max(maxValency, valency);
+		
+		for(int i = 0; i < (valency - 1); i++){
+			for(int j = i + 1; j < valency; j++){
+				if(filled == buffer.length){
+					spill();
+				}
+				buffer[filled++] = PairCounter.pairKey(features[i], features[j]);
+			}
+		}
+	}
+	
+	
+	//Sorts the buffer and writes it out as a run of distinct keys and their counts
+	private void spill(){
+		Arrays.sort(buffer, 0, filled);
+		File runFile = null;
+		int distinct = 0;
+		try {
+			runFile = File.createTempFile("MonteCarloPairRun.", ".bin", spillDirectory);
+			runFile.deleteOnExit();
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), 1 << 16))) {
+				for(int i = 0; i < filled; ){
+					int end = i + 1;
+					while( (end < filled) && (buffer[end] == buffer[i]) ){
+						end++;
+					}
+					out.writeLong(buffer[i]);
+					out.writeInt(end - i);
+					distinct++;
+					i = end;
+				}
+			}
+		} catch (IOException ioe) {
+			System.err.println("Could not write pair run file " + runFile + " (" + ioe.getMessage() + ")");
+			System.exit(1);
+		}
+		runFiles.add(runFile);
+		System.out.println("Written pair run " + runFiles.size() + " (" + distinct + " distinct of " + filled + " pairs), " 
+				+ pairOccurrences + " pairs so far, largest complex valency " + maxValency);
+		filled = 0;
+	}
+	
+	
+	//Reports the pairs formed by each valency class, then returns the index of the distinct pairs and their counts
+	public PairIndex finish(){
+		if( !runFiles.isEmpty() && (filled > 0) ){
+			spill();
+		}
+		System.out.println("Complexes formed " + pairOccurrences + " pairs, largest complex valency " + maxValency + " (" 
+				+ ((long)maxValency * (maxValency - 1) / 2) + " pairs)");
+		for(int valencyClass = 0; valencyClass < VALENCY_CLASSES.length; valencyClass++){
+			String label = (valencyClass + 1 < VALENCY_CLASSES.length) ? 
+					VALENCY_CLASSES[valencyClass] + "-" + (VALENCY_CLASSES[valencyClass + 1] - 1) : VALENCY_CLASSES[valencyClass] + "+";
+			System.out.println("\tValency " + label + ": " + classComplexes[valencyClass] + " complexes, " + classPairs[valencyClass] 
+					+ " pairs (" + String.format("%.2f", (pairOccurrences == 0) ? 0.0 : 100.0 * classPairs[valencyClass] / pairOccurrences) + "%)");
+		}
+		
+		if(runFiles.isEmpty()){    //Everything fitted in the buffer
+			Arrays.sort(buffer, 0, filled);
+			int distinct = 0;
+			for(int i = 0; i < filled; i++){
+				if( (i == 0) || (buffer[i] != buffer[i - 1]) ){
+					distinct++;
+				}
+			}
+			long[] sortedKeys = new long[distinct];
+			int[] observedCounts = new int[distinct];
+			int pair = -1;
+			for(int i = 0; i < filled; i++){
+				if( (i == 0) || (buffer[i] != buffer[i - 1]) ){
+					sortedKeys[++pair] = buffer[i];
+				}
+				observedCounts[pair]++;
+			}
+			buffer = null;
+			return new PairIndex(sortedKeys, observedCounts);
+		}
+		
+		buffer = null;    //Released before the index is allocated
+		try {
+			int distinct = merge(null, null);    //Once to count the distinct pairs, then again to fill the index
+			long[] sortedKeys = new long[distinct];
+			int[] observedCounts = new int[distinct];
+			merge(sortedKeys, observedCounts);
+			return new PairIndex(sortedKeys, observedCounts);
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			System.exit(1);
+		} finally {
+			for(File runFile : runFiles){
+				runFile.delete();
+			}
+		}
+		return null;
+	}
+	
+	
+	//Merges the runs, filling in the keys and counts if given, and returns the number of distinct keys
+	private int merge(long[] sortedKeys, int[] observedCounts) throws IOException {
+		PriorityQueue<RunReader> runs = new PriorityQueue<RunReader>((a, b) -> Long.compare(a.key, b.key));
+		for(File runFile : runFiles){
+			RunReader run = new RunReader(runFile);
+			if(run.next()){
+				runs.add(run);
+			}
+		}
+		int distinct = 0;
+		long currentKey = 0;    //Never a real key
+		while(!runs.isEmpty()){
+			RunReader run = runs.poll();
+			if(run.key != currentKey){
+				currentKey = run.key;
+				distinct++;
+				if(sortedKeys != null){
+					sortedKeys[distinct - 1] = currentKey;
+				}
+			}
+			if(observedCounts != null){
+				observedCounts[distinct - 1] += run.count;
+			}
+			if(run.next()){
+				runs.add(run);
+			} else {
+				run.in.close();
+			}
+		}
+		return distinct;
+	}
+	
+	
+	private static class RunReader {
+		
+		final DataInputStream in;
+		long key;
+		int count;
+		
+		RunReader(File runFile) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), 1 << 16));
+		}
+		
+		//Moves on to the run's next key, returning false at the end of the run
+		boolean next() throws IOException {
+			try {
+				key = in.readLong();
+			} catch (EOFException eofe) {
+				return false;
+			}
+			count = in.readInt();
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+
+/**
+ * Maps each feature name to a dense integer id (0, 1, 2...), allocated in the order the
+ * features are first seen.  The simulation works only on these ids; names are looked up
+ * again when writing out results.
+ * @author wingetts
+ *
+ */
+
+public class FeatureDictionary {
+
+	HashMap<String, Integer> featureIds = new HashMap<String, Integer>();
+	ArrayList<String> featureNames = new ArrayList<String>();
+
+
+	//Returns the id of a feature, allocating a new id if the feature has not been seen before
+	public int getId(String featureName){
+		Integer id = featureIds.get(featureName);
+		if(id == null){
+			id = featureNames.size();
+			featureIds.put(featureName, id);
+			featureNames.add(featureName);
+		}
+		return id;
+	}
+
+
+	//Returns the id of a feature, or -1 if not present
+	public int lookupId(String featureName){
+		Integer id = featureIds.get(featureName);
+		if(id == null){
+			return -1;
+		}
+		return id;
+	}
+
+
+	public String getName(int id){
+		return featureNames.get(id);
+	}
+
+
+	public int size(){
+		return featureNames.size();
+	}
+	
+	
+	//Approximate heap used, in bytes: per name its String and byte array, hash map entry, boxed id and slots
+	public long memoryBytes(){
+		long bytes = featureNames.size() * 100L;
+		for(String name : featureNames){
+			bytes += name.length();
+		}
+		return bytes;
+	}
+
+}
@@ -1,14 +1,28 @@
 package uk.ac.babraham.anacondamontecarlosimulation;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.FileOutputStream;
-import java.util.zip.*;
-import java.util.HashMap;
+import java.io.File;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.*;
 
 /**
 ###################################################################################
@@ -37,81 +51,177 @@ import java.util.ArrayList;
 
 public class FileIO {
 	
-	public void inputData(String filename, Distribution features, Distribution valencies, HashMap<String, Double> observedInteractionsCounter, Distribution featuresValGt1, boolean qc){
-		
-		//Decide whether input is zipped	
-		FileInputStream fis = null;
-		BufferedReader br = null;
+	private static final int INPUT_CHUNK_SIZE = 4 * 1024 * 1024;
+	private static final InputChunk END_OF_INPUT = new InputChunk(new byte[0], 0);
+	
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;    //Output settings (see setOutputOptions)
+	private int outputThreads = 1;
+	private String outputFormat = "text";
+	private RunMetrics metrics = null;    //If set, told when reading the input moves on to building the indexes
+	private int pairMemory = 0;    //If set, the observed pairs are counted out of core in a buffer of this many MB
+	private boolean exitOnError = true;    //Otherwise errors reading or writing files are thrown (see fail)
+	
+	
+	//Sets the gzip compression level (0-9, or -1 for the default) and number of compression threads of the 
+	//results files, and whether the results are written as "text", "columnar" (binary) or "both"
+	public void setOutputOptions(int compressionLevel, int outputThreads, String outputFormat){
+		this.compressionLevel = compressionLevel;
+		this.outputThreads = outputThreads;
+		this.outputFormat = outputFormat;
+	}
+	
+	
+	public void setMetrics(RunMetrics metrics){
+		this.metrics = metrics;
+	}
+	
+	
+	//Counts the observed pairs with an ExternalPairCounter, spilling runs of at most this many MB next to the input file
+	public void setPairMemory(int megabytes){
+		pairMemory = megabytes;
+	}
+	
+	
+	//By default an error reading or writing a file ends the program.  The simulation server turns this off, so 
+	//that such errors are thrown as UncheckedIOExceptions instead and only fail the job concerned.
+	public void setExitOnError(boolean exitOnError){
+		this.exitOnError = exitOnError;
+	}
+	
+	
+	//Exits, or returns the exception to throw if exitOnError is off (so callers write "throw fail(...)")
+	private RuntimeException fail(IOException ioe){
+		if(exitOnError){
+			ioe.printStackTrace();
+			System.exit(1);
+		}
+		return new UncheckedIOException(ioe.getMessage(), ioe);
+	}
+	
+	
+	private RuntimeException fail(String message){
+		if(exitOnError){
+			System.err.println(message);
+			System.exit(1);
+		}
+		return new UncheckedIOException(message, new IOException(message));
+	}
+	
 	
+	//Reads the input file: decompression runs on its own thread, which cuts the data into chunks between 
+	//complexes (i.e. barcodes) and hands them to a pool of parser threads.  The parsed chunks are then merged 
+	//into the distributions and the observed interactions counter in file order, on this thread.
+	public void inputData(String filename, Dataset dataset, boolean qc, int threads){
+		
+		FeatureDictionary dictionary = dataset.dictionary;
+		Distribution features = dataset.features;
+		Distribution valencies = dataset.valencies;
+		Distribution featuresValGt1 = dataset.featuresValGt1;
+		PairCounter observedInteractionsCounter = new PairCounter();
+		ExternalPairCounter externalPairCounter = null;
+		if( (pairMemory > 0) && dataset.indexPairs ){
+			externalPairCounter = new ExternalPairCounter(pairMemory, new File(filename).getAbsoluteFile().getParentFile());
+		}
+		
+		InputStream inputStream = null;
 		try {
-			fis = new FileInputStream(filename);
-			br = new BufferedReader(new InputStreamReader(new GZIPInputStream(fis)));
-		} catch (IOException ioe) {
-			try {
-				if (fis != null) {
-					fis.close();
-				}
-				br = new BufferedReader(new FileReader(filename));
-			} catch (IOException ex) {
-				ex.printStackTrace();
-				System.exit(1);
+			if(isGzipped(filename)){    //Decide whether input is zipped
+				inputStream = new GZIPInputStream(new FileInputStream(filename), 1 << 16);
+			} else {
+				inputStream = new FileInputStream(filename);
 			}
+		} catch (IOException ioe) {
+			throw fail(ioe);
 		}
 		
-		try {
-			String line = null;
-			br.readLine(); // Skip header
+		ExecutorService parserPool = Executors.newFixedThreadPool(threads);
+		BlockingQueue<Future<InputChunk>> parsedChunks = new ArrayBlockingQueue<Future<InputChunk>>(threads * 2);    //Limits the data held in memory
+		final InputStream chunkInputStream = inputStream;
+		Thread decompressor = new Thread(() -> readChunks(chunkInputStream, parserPool, parsedChunks), "input-decompressor");
+		decompressor.setDaemon(true);
+		decompressor.start();
 		
-			int lineNumber = 0;
-			int previousBarcodeID = 0;			
+		try {
+			long lineNumber = 0;
+			int previousBarcodeID = -1;			
 			Complex currentComplex = new Complex();
+			int numberComplexes = 0;
+			int[] complexStarts = new int[dataset.keepComplexes ? 1024 : 0];    //Only filled if keeping the complexes
+			int[] complexFeatures = new int[dataset.keepComplexes ? 4096 : 0];
 
-			while ((line = br.readLine()) != null) {
-				lineNumber++;
-				if(lineNumber % 1_000_000 == 0){
-					System.out.println("Read in " + lineNumber + " lines");
-				}	
-						
-				String[] lineElements = line.split("\t");
-				int barcodeID = Integer.parseInt(lineElements[1]);
-				String featureName = lineElements[7];
-							
-				features.addElement(featureName);
+			while (true) {
+				InputChunk chunk = parsedChunks.take().get();
+				if(chunk == END_OF_INPUT){
+					break;
+				}
+				if(chunk.error != null){
+					throw fail(chunk.error);
+				}
 				
-				if(barcodeID < previousBarcodeID){
-					System.err.println("Barcodes in file are not in numerical order (i.e. barcode " + previousBarcodeID + " should be less than barcode " + barcodeID + ")");
-					System.exit(1);
-					
+				if( (lineNumber + chunk.numberLines) / 1_000_000 > lineNumber / 1_000_000 ){
+					System.out.println("Read in " + ( (lineNumber + chunk.numberLines) / 1_000_000 * 1_000_000 ) + " lines");
 				}
+				lineNumber += chunk.numberLines;	
 				
-				if ( (barcodeID != previousBarcodeID) && (previousBarcodeID != 0) ){    //New complex   			
+				int[] featureIds = new int[chunk.localFeatureNames.size()];    //Local id -> dictionary id
+				for(int i = 0; i < featureIds.length; i++){
+					featureIds[i] = dictionary.getId(chunk.localFeatureNames.get(i));
+				}
+				
+				if( (chunk.numberComplexes > 0) && (chunk.barcodes[0] < previousBarcodeID) ){
+					throw fail("Barcodes in file are not in numerical order (i.e. barcode " + previousBarcodeID + " should be less than barcode " + chunk.barcodes[0] + ")");
+				}
+				if( (chunk.numberComplexes > 0) && (chunk.barcodes[0] == previousBarcodeID) ){    //Chunks are only cut between barcodes
+					throw fail("Barcode " + previousBarcodeID + " was split between input chunks");
+				}
+						
+				for(int complex = 0; complex < chunk.numberComplexes; complex++){
+					for(int i = chunk.complexStarts[complex]; i < chunk.complexStarts[complex + 1]; i++){
+						int featureName = featureIds[chunk.features[i]];
+						features.addElement(featureName);
+						currentComplex.addFeature(featureName);    //Repeat features have already been rejected by the parser
+					}
 					
-					int valency = currentComplex.getValency();
-					valencies.addElement(Integer.toString(valency));
-							
-					currentComplex.interactionsCounterIncrementer(observedInteractionsCounter);
+					valencies.addElement(currentComplex.getValency());
+					if(dataset.keepComplexes){
+						if(numberComplexes + 1 == complexStarts.length){
+							complexStarts = Arrays.copyOf(complexStarts, complexStarts.length * 2);
+						}
+						int start = complexStarts[numberComplexes];
+						if(start + currentComplex.getValency() > complexFeatures.length){
+							complexFeatures = Arrays.copyOf(complexFeatures, Math.max(complexFeatures.length * 2, start + currentComplex.getValency()));
+						}
+						System.arraycopy(currentComplex.featuresArray, 0, complexFeatures, start, currentComplex.getValency());
+						complexStarts[numberComplexes + 1] = start + currentComplex.getValency();
+					}
+					numberComplexes++;
+					if(externalPairCounter != null){
+						externalPairCounter.addComplex(currentComplex.featuresArray, currentComplex.getValency());
+					} else if(dataset.indexPairs){
+						currentComplex.interactionsCounterIncrementer(observedInteractionsCounter);
+					}
 					if(qc){    //Performing QC diagnostics
 						currentComplex.addToDistribution(featuresValGt1, 2);
 					}
 					currentComplex.empty();
-					currentComplex.addFeature(featureName);
-					
-									
-				} else {
-					if(!currentComplex.addFeature(featureName)){
-						System.err.println("Impossible complex (contains repeat features) in datafile");
-						System.exit(1);
-					}
-				}			
-				previousBarcodeID = barcodeID;
+					previousBarcodeID = chunk.barcodes[complex];
+				}
 			}	
 			
-			valencies.addElement(Integer.toString(currentComplex.getValency()));  //Add final valency at end of file
-			if(qc){    //Performing QC diagnostics
-				currentComplex.addToDistribution(featuresValGt1, 2);
+			dataset.numberComplexes = numberComplexes;
+			if(dataset.keepComplexes){
+				dataset.complexStarts = IntBuffer.wrap(complexStarts, 0, numberComplexes + 1).slice();
+				dataset.complexFeatures = IntBuffer.wrap(complexFeatures, 0, complexStarts[numberComplexes]).slice();
+			}
+			
+			if(metrics != null){
+				metrics.startPhase("Build indexes");
+			}
+			if(externalPairCounter != null){
+				dataset.observedInteractions = externalPairCounter.finish();
+			} else if(dataset.indexPairs){
+				dataset.observedInteractions = new PairIndex(observedInteractionsCounter);
 			}
-			currentComplex.interactionsCounterIncrementer(observedInteractionsCounter);
-			currentComplex.empty();
 			
 			features.activateElements();    //Create proper data structures
 			valencies.activateElements();
@@ -119,131 +229,535 @@ public class FileIO {
 				featuresValGt1.activateElements();
 			}
 						
-		} catch (IOException ex) {
-				ex.printStackTrace();
-				System.exit(1);
-		}		
+		} catch (InterruptedException | ExecutionException ex) {
+			throw fail( (ex.getCause() instanceof IOException) ? (IOException)ex.getCause() : new IOException(ex) );
+		} finally {
+			parserPool.shutdownNow();    //Only stops anything if reading failed...
+			decompressor.interrupt();    //...in which case the decompressor may be waiting to hand over a chunk
+		}
 	}
 	
-
 	
-	public void writeResults (String inputFilename, int simsToRun, 
-			HashMap<String, Double> observedInteractionsCounter,  
-			HashMap <String, Integer> simCumulativeInteractions, 
-			HashMap<String, Integer> compObsSimCounter, int[] notAddedPoolResults, 
-			String randomString){
-		
-		String resOutFilename = inputFilename + ".MonteCarloResults." + randomString + ".txt.gz";
-			
-		//Write out the simulation results file
+	static boolean isGzipped(String filename) throws IOException {
+		try (FileInputStream fis = new FileInputStream(filename)) {
+			return (fis.read() == 0x1f) && (fis.read() == 0x8b);
+		}
+	}
+	
+	
+	//Runs on the decompression thread: reads the input, skipping the header, and submits chunks that end between
+	//two complexes to the parser pool.  The futures are queued in file order, followed by END_OF_INPUT.
+	private void readChunks(InputStream inputStream, ExecutorService parserPool, BlockingQueue<Future<InputChunk>> parsedChunks){
 		try {
-			BufferedOutputStream resultsFileOutStream = new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(resOutFilename), 2048));
-			resultsFileOutStream.write("Name_Feature1\tName_Feature2\tObserved_Frequency\tSimulation_Average_Frequency\tObserved/Simulation\tSimulation_Score\tP_Value\n".getBytes());
+			byte[] buffer = new byte[INPUT_CHUNK_SIZE];
+			int filled = 0;
+			boolean headerSkipped = false;
+			boolean endOfFile = false;
+			
+			while(true){
+				while( (filled < buffer.length) && !endOfFile ){
+					int bytesRead = inputStream.read(buffer, filled, buffer.length - filled);
+					if(bytesRead < 0){
+						endOfFile = true;
+						break;
+					}
+					filled += bytesRead;
+				}
+				
+				if(!headerSkipped){    // Skip header
+					int headerEnd = 0;
+					while( (headerEnd < filled) && (buffer[headerEnd] != '\n') ){
+						headerEnd++;
+					}
+					if( (headerEnd == filled) && !endOfFile ){    //Header longer than the buffer
+						buffer = Arrays.copyOf(buffer, buffer.length * 2);
+						continue;
+					}
+					int dataStart = Math.min(headerEnd + 1, filled);
+					System.arraycopy(buffer, dataStart, buffer, 0, filled - dataStart);
+					filled -= dataStart;
+					headerSkipped = true;
+				}
+				
+				int chunkEnd = endOfFile ? filled : findLastComplexStart(buffer, filled);
+				if(chunkEnd <= 0){    //Nothing to send yet: the buffer holds only one complex
+					if(endOfFile){
+						break;
+					}
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+					continue;
+				}
+				
+				byte[] nextBuffer = new byte[Math.max(INPUT_CHUNK_SIZE, (filled - chunkEnd) * 2)];
+				System.arraycopy(buffer, chunkEnd, nextBuffer, 0, filled - chunkEnd);
+				parsedChunks.put(parserPool.submit(new InputChunk(buffer, chunkEnd)));
+				buffer = nextBuffer;
+				filled = filled - chunkEnd;
+				if(endOfFile){
+					break;
+				}
+			}
+			parsedChunks.put(CompletableFuture.completedFuture(END_OF_INPUT));
 			
-			for(String interaction : observedInteractionsCounter.keySet() ){
-				Double observed = observedInteractionsCounter.get(interaction);
-				float simAvFreq = (float)simCumulativeInteractions.get(interaction) / simsToRun;
-				Double obsSim = observed / simAvFreq;
-				int simScore = compObsSimCounter.get(interaction);
-				float pVal = (float)simScore / simsToRun;
-				String lineToPrint = interaction + "\t" + Double.toString(observed) + "\t" + Double.toString(simAvFreq) + "\t";
-				lineToPrint = lineToPrint + Double.toString(obsSim) + "\t" + Double.toString(simScore) + "\t";
-				lineToPrint = lineToPrint + Float.toString(pVal) + "\n";
-				resultsFileOutStream.write(lineToPrint.getBytes());			
-			}		
-			resultsFileOutStream.close();		
+		} catch (IOException ioe) {
+			try {
+				parsedChunks.put(CompletableFuture.failedFuture(ioe));    //Reported by inputData, after the chunks before it
+			} catch (InterruptedException ie) {
+				//inputData has already given up
+			}
+		} catch (InterruptedException | RejectedExecutionException ex) {
+			//inputData has given up reading (see its finally block)
+		} finally {
+			try {
+				inputStream.close();
+			} catch (IOException ioe) {
+				//Nothing more is read from it
+			}
+		}
+	}
+	
+	
+	//Returns the start of the line following the last line of the last complete complex in the buffer (the last 
+	//complex may not be complete, so it is held back for the next chunk), or -1 if the buffer does not contain two 
+	//complexes.  Blank lines are skipped when comparing barcodes, so a complex is never split between chunks.
+	private int findLastComplexStart(byte[] buffer, int filled){
+		int lineEnd = filled - 1;
+		while( (lineEnd >= 0) && (buffer[lineEnd] != '\n') ){
+			lineEnd--;
+		}
+		if(lineEnd < 0){
+			return -1;
+		}
+		
+		boolean lastComplexFound = false;
+		int lastBarcodeID = 0;
+		while(true){
+			int lineStart = lineEnd;
+			while( (lineStart > 0) && (buffer[lineStart - 1] != '\n') ){
+				lineStart--;
+			}
+			boolean blank = (lineEnd == lineStart) || ( (lineEnd == lineStart + 1) && (buffer[lineStart] == '\r') );
+			if(!blank){
+				int barcodeID = InputChunk.barcodeOfLineBefore(buffer, lineEnd);
+				if(!lastComplexFound){
+					lastBarcodeID = barcodeID;
+					lastComplexFound = true;
+				} else if(barcodeID != lastBarcodeID){
+					return lineEnd + 1;
+				}
+			}
+			if(lineStart == 0){
+				return -1;
+			}
+			lineEnd = lineStart - 1;
+		}
+	}
+	
+
+	
+	//Reads a (optionally gzipped) file of feature pairs, one pair per line separated by a tab or spaces
+	public static List<String[]> readPairNames(String filename){
+		List<String[]> pairNames = new ArrayList<String[]>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader( isGzipped(filename) ? 
+				new GZIPInputStream(new FileInputStream(filename)) : new FileInputStream(filename), StandardCharsets.UTF_8))) {
+			String line;
+			while( (line = reader.readLine()) != null ){
+				line = line.trim();
+				if(line.isEmpty()){
+					continue;
+				}
+				String[] names = line.split("\\s+");
+				if(names.length != 2){
+					System.err.println("Line '" + line + "' of " + filename + " is not a pair of features");
+					System.exit(1);
+				}
+				pairNames.add(names);
+			}
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
 			System.exit(1);
 		}
-
+		return pairNames;
+	}
+	
+	
+	public static String getResultsFilename(String inputFilename, String randomString){
+		return inputFilename + ".MonteCarloResults." + randomString + ".txt.gz";
+	}
+	
+	
+	public void writeResults (String inputFilename, int simsToRun, FeatureDictionary dictionary, 
+			PairIndex observedInteractions,  
+			long[] simCumulativeInteractions, 
+			int[] compObsSimCounter, int[] interactionSims, int[] notAddedPoolResults, 
+			String randomString){
+		
+		//interactionSims (null unless stopping early) gives the number of simulations for which each interaction was followed
+		String resOutFilename = getResultsFilename(inputFilename, randomString);
+			
+		//Write out the simulation results file
+		if(!outputFormat.equals("columnar")){
+			try {
+				ResultsWriter resultsFileOut = openResults(resOutFilename, interactionSims != null);
+				writeResultRows(resultsFileOut, simsToRun, dictionary, observedInteractions, simCumulativeInteractions, compObsSimCounter, interactionSims);
+				resultsFileOut.close();		
+			} catch (IOException ioe) {
+				throw fail(ioe);
+			}
+		}
+		if(!outputFormat.equals("text")){
+			writeColumnarResults(inputFilename, simsToRun, dictionary, observedInteractions, simCumulativeInteractions, compObsSimCounter, interactionSims, randomString);
+		}
+		writeUnallocatedPools(inputFilename, notAddedPoolResults, randomString);
+	}
+	
+	
+	//Creates a text results file and writes its header, for the rows to be written by writeResultRows (in one or 
+	//more calls, as in the partitioned mode)
+	public ResultsWriter openResults(String resOutFilename, boolean writeNumberSimulations) throws IOException {
+		ResultsWriter resultsFileOut = new ResultsWriter(resOutFilename, compressionLevel, outputThreads);
+		resultsFileOut.write("Name_Feature1\tName_Feature2\tObserved_Frequency\tSimulation_Average_Frequency\tObserved/Simulation\tSimulation_Score\tP_Value");
+		if(writeNumberSimulations){
+			resultsFileOut.write("\tNumber_Simulations");
+		}
+		resultsFileOut.write('\n');
+		return resultsFileOut;
+	}
+	
+	
+	public void writeResultRows(ResultsWriter resultsFileOut, int simsToRun, FeatureDictionary dictionary, PairIndex observedInteractions, 
+			long[] simCumulativeInteractions, int[] compObsSimCounter, int[] interactionSims){
+		for(int index = 0; index < observedInteractions.size(); index++){
+			int sims = (interactionSims == null) ? simsToRun : interactionSims[index];
+			double observed = observedInteractions.observedAt(index);
+			float simAvFreq = (float)simCumulativeInteractions[index] / sims;
+			double obsSim = observed / simAvFreq;
+			int simScore = compObsSimCounter[index];
+			float pVal = (float)simScore / sims;
+			writeInteractionName(resultsFileOut, dictionary, observedInteractions.keyAt(index));
+			resultsFileOut.write('\t');
+			resultsFileOut.writeDouble(observed);
+			resultsFileOut.write('\t');
+			resultsFileOut.writeDouble(simAvFreq);
+			resultsFileOut.write('\t');
+			resultsFileOut.writeDouble(obsSim);
+			resultsFileOut.write('\t');
+			resultsFileOut.writeDouble(simScore);
+			resultsFileOut.write('\t');
+			resultsFileOut.writeFloat(pVal);
+			if(interactionSims != null){
+				resultsFileOut.write('\t');
+				resultsFileOut.writeLong(sims);
+			}
+			resultsFileOut.write('\n');
+		}
+	}
+	
+	
+	public void writeUnallocatedPools(String inputFilename, int[] notAddedPoolResults, String randomString){
 	
 		//Write out the un-emptied "unable to allocate features" file tally
 		String poolOutFilename = inputFilename + ".MonteCarloUnallocatedPools." + randomString + ".txt.gz";
 		try {
-			BufferedOutputStream poolFileOutStream = new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(poolOutFilename), 2048));
+			ResultsWriter poolFileOut = new ResultsWriter(poolOutFilename, compressionLevel, 1);
 			for(int unalloacted : notAddedPoolResults){
-				String lineToPrint = Integer.toString(unalloacted) + "\n";
-				poolFileOutStream.write(lineToPrint.getBytes());	
+				poolFileOut.writeLong(unalloacted);
+				poolFileOut.write('\n');
 			}
-			poolFileOutStream.close();
+			poolFileOut.close();
 		} catch (IOException ioe) {
-			ioe.printStackTrace();
-			System.exit(1);
+			throw fail(ioe);
+		}
+	}
+	
+	
+	
+	//Writes the approximate results (see ApproximateNull) in the layout of the results file, the simulation score being
+	//the number of simulations (of simsToRun) expected to reach the observed count
+	public void writeApproximateResults(String inputFilename, int simsToRun, FeatureDictionary dictionary, 
+			PairIndex observedInteractions, ApproximateNull approximateNull, String randomString){
+		
+		String approxOutFilename = inputFilename + ".MonteCarloApproxResults." + randomString + ".txt.gz";
+		try {
+			ResultsWriter approxFileOut = openResults(approxOutFilename, false);
+			for(int index = 0; index < observedInteractions.size(); index++){
+				double observed = observedInteractions.observedAt(index);
+				double expected = approximateNull.expectedCounts[index];
+				double pVal = approximateNull.pValues[index];
+				writeInteractionName(approxFileOut, dictionary, observedInteractions.keyAt(index));
+				approxFileOut.write('\t');
+				approxFileOut.writeDouble(observed);
+				approxFileOut.write('\t');
+				approxFileOut.writeDouble(expected);
+				approxFileOut.write('\t');
+				approxFileOut.writeDouble(observed / expected);
+				approxFileOut.write('\t');
+				approxFileOut.writeDouble(pVal * simsToRun);
+				approxFileOut.write('\t');
+				approxFileOut.writeDouble(pVal);
+				approxFileOut.write('\n');
+			}
+			approxFileOut.close();
+		} catch (IOException ioe) {
+			throw fail(ioe);
+		}
+	}
+	
+	
+	
+	//Writes the approximate and simulated frequencies and p-values of each interaction side by side (--approximate-check)
+	public void writeApproximateCheck(String inputFilename, int simsToRun, FeatureDictionary dictionary, PairIndex observedInteractions, 
+			ApproximateNull approximateNull, long[] simCumulativeInteractions, int[] compObsSimCounter, String randomString){
+		
+		String checkOutFilename = inputFilename + ".MonteCarloApproxCheck." + randomString + ".txt.gz";
+		try {
+			ResultsWriter checkFileOut = new ResultsWriter(checkOutFilename, compressionLevel, outputThreads);
+			checkFileOut.write("Name_Feature1\tName_Feature2\tObserved_Frequency\tApproximate_Average_Frequency\tSimulation_Average_Frequency\tApproximate_P_Value\tSimulation_P_Value\tAgree\n");
+			for(int index = 0; index < observedInteractions.size(); index++){
+				writeInteractionName(checkFileOut, dictionary, observedInteractions.keyAt(index));
+				checkFileOut.write('\t');
+				checkFileOut.writeLong(observedInteractions.observedAt(index));
+				checkFileOut.write('\t');
+				checkFileOut.writeDouble(approximateNull.expectedCounts[index]);
+				checkFileOut.write('\t');
+				checkFileOut.writeDouble((double)simCumulativeInteractions[index] / simsToRun);
+				checkFileOut.write('\t');
+				checkFileOut.writeDouble(approximateNull.pValues[index]);
+				checkFileOut.write('\t');
+				checkFileOut.writeDouble((double)compObsSimCounter[index] / simsToRun);
+				checkFileOut.write('\t');
+				checkFileOut.write(approximateNull.agrees(index, compObsSimCounter[index], simsToRun) ? "TRUE" : "FALSE");
+				checkFileOut.write('\n');
+			}
+			checkFileOut.close();
+		} catch (IOException ioe) {
+			throw fail(ioe);
+		}
+	}
+	
+	
+	
+	//Writes the binary partial-results file, which Collate combines with those of other jobs
+	public void writePartialResults(String inputFilename, int simsToRun, long seed, int firstRunSimNumber, FeatureDictionary dictionary, 
+			PairIndex observedInteractions, long[] simCumulativeInteractions, int[] compObsSimCounter, 
+			int[] interactionSims, String randomString){
+		
+		String partialOutFilename = inputFilename + ".MonteCarloPartial." + randomString + ".bin.gz";
+		try {
+			PartialResults.write(partialOutFilename, simsToRun, seed, firstRunSimNumber, dictionary, observedInteractions, simCumulativeInteractions, compObsSimCounter, interactionSims);
+		} catch (IOException ioe) {
+			throw fail(ioe);
+		}
+	}
+	
+	
+	
+	//Writes the mean, variance and z-score of each interaction's simulated counts, and the quantiles of those sketched
+	public void writeNullStatistics(String inputFilename, int simsToRun, FeatureDictionary dictionary, 
+			PairIndex observedInteractions, long[] simCumulativeInteractions, int[] interactionSims, 
+			NullStatistics nullStatistics, String randomString){
+		
+		String momentsOutFilename = inputFilename + ".MonteCarloMoments." + randomString + ".txt.gz";
+		try {
+			ResultsWriter momentsFileOut = new ResultsWriter(momentsOutFilename, compressionLevel, outputThreads);
+			momentsFileOut.write("Name_Feature1\tName_Feature2\tObserved_Frequency\tSimulation_Mean\tSimulation_Variance\tZ_Score");
+			if(interactionSims != null){
+				momentsFileOut.write("\tNumber_Simulations");
+			}
+			momentsFileOut.write('\n');
+			
+			for(int index = 0; index < observedInteractions.size(); index++){
+				int sims = (interactionSims == null) ? simsToRun : interactionSims[index];
+				int observed = observedInteractions.observedAt(index);
+				double mean = (double)simCumulativeInteractions[index] / sims;
+				double variance = nullStatistics.variance(index, sims, simCumulativeInteractions[index], observed);
+				writeInteractionName(momentsFileOut, dictionary, observedInteractions.keyAt(index));
+				momentsFileOut.write('\t');
+				momentsFileOut.writeLong(observed);
+				momentsFileOut.write('\t');
+				momentsFileOut.writeDouble(mean);
+				momentsFileOut.write('\t');
+				writeStatistic(momentsFileOut, variance);
+				momentsFileOut.write('\t');
+				writeStatistic(momentsFileOut, (observed - mean) / Math.sqrt(variance));    //NA when the variance is 0 or unknown
+				if(interactionSims != null){
+					momentsFileOut.write('\t');
+					momentsFileOut.writeLong(sims);
+				}
+				momentsFileOut.write('\n');
+			}
+			momentsFileOut.close();
+		} catch (IOException ioe) {
+			throw fail(ioe);
+		}
+		
+		if(nullStatistics.sketches.length == 0){
+			return;
+		}
+		String quantilesOutFilename = inputFilename + ".MonteCarloQuantiles." + randomString + ".txt.gz";
+		try {
+			ResultsWriter quantilesFileOut = new ResultsWriter(quantilesOutFilename, compressionLevel, 1);
+			quantilesFileOut.write("Name_Feature1\tName_Feature2\tObserved_Frequency");
+			for(double q : NullStatistics.QUANTILES){
+				quantilesFileOut.write("\tQ" + q);
+			}
+			quantilesFileOut.write('\n');
+			
+			for(int i = 0; i < nullStatistics.sketches.length; i++){
+				int index = nullStatistics.sketchedInteractions[i];
+				writeInteractionName(quantilesFileOut, dictionary, observedInteractions.keyAt(index));
+				quantilesFileOut.write('\t');
+				quantilesFileOut.writeLong(observedInteractions.observedAt(index));
+				for(double q : NullStatistics.QUANTILES){
+					quantilesFileOut.write('\t');
+					writeStatistic(quantilesFileOut, nullStatistics.sketches[i].quantile(q));
+				}
+				quantilesFileOut.write('\n');
+			}
+			quantilesFileOut.close();
+		} catch (IOException ioe) {
+			throw fail(ioe);
 		}
 	}
 	
 	
+	private void writeStatistic(ResultsWriter out, double value){
+		if(Double.isNaN(value) || Double.isInfinite(value)){
+			out.write("NA");
+		} else {
+			out.writeDouble(value);
+		}
+	}
+	
 	
-	public void writeQCResults(String inputFilename, int simsToRun, Distribution features, 
-			Distribution featuresValGt1, HashMap<String, Integer> simFeaturesCounter, 
-			HashMap<String, Integer> simFeaturesValGt1Counter, String randomString){
+	
+	//Writes the results as columns (for reading into e.g. numpy or R without parsing text).  Layout (big-endian):
+	//number of feature names, the names (writeUTF, indexed by feature id), number of interactions, then for the
+	//interactions in turn: int[] first feature id and int[] second feature id (the first name being alphabetically
+	//the lower), int[] observed frequency, double[] simulation average frequency, int[] simulation score, 
+	//double[] p-value and int[] number of simulations
+	public void writeColumnarResults(String inputFilename, int simsToRun, FeatureDictionary dictionary, 
+			PairIndex observedInteractions, long[] simCumulativeInteractions, int[] compObsSimCounter, 
+			int[] interactionSims, String randomString){
+		
+		String columnsOutFilename = inputFilename + ".MonteCarloColumns." + randomString + ".bin";
+		int numberInteractions = observedInteractions.size();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(columnsOutFilename), 1 << 16))) {
+			out.writeInt(dictionary.size());
+			for(int id = 0; id < dictionary.size(); id++){
+				out.writeUTF(dictionary.getName(id));
+			}
+			out.writeInt(numberInteractions);
+			
+			for(int column = 0; column < 2; column++){
+				for(int index = 0; index < numberInteractions; index++){
+					long key = observedInteractions.keyAt(index);
+					int feature1 = PairCounter.firstFeature(key);
+					int feature2 = PairCounter.secondFeature(key);
+					if(dictionary.getName(feature1).compareTo(dictionary.getName(feature2)) > 0){
+						int swap = feature1;
+						feature1 = feature2;
+						feature2 = swap;
+					}
+					out.writeInt( (column == 0) ? feature1 : feature2 );
+				}
+			}
+			for(int index = 0; index < numberInteractions; index++){
+				out.writeInt(observedInteractions.observedAt(index));
+			}
+			for(int index = 0; index < numberInteractions; index++){
+				int sims = (interactionSims == null) ? simsToRun : interactionSims[index];
+				out.writeDouble((double)simCumulativeInteractions[index] / sims);
+			}
+			for(int index = 0; index < numberInteractions; index++){
+				out.writeInt(compObsSimCounter[index]);
+			}
+			for(int index = 0; index < numberInteractions; index++){
+				int sims = (interactionSims == null) ? simsToRun : interactionSims[index];
+				out.writeDouble((double)compObsSimCounter[index] / sims);
+			}
+			for(int index = 0; index < numberInteractions; index++){
+				out.writeInt( (interactionSims == null) ? simsToRun : interactionSims[index] );
+			}
+		} catch (IOException ioe) {
+			throw fail(ioe);
+		}
+	}
+	
+	
+	
+	//Writes the tab-separated names of the two features in an interaction (ordered alphabetically)
+	private void writeInteractionName(ResultsWriter out, FeatureDictionary dictionary, long interactionKey){
+		String feature1 = dictionary.getName(PairCounter.firstFeature(interactionKey));
+		String feature2 = dictionary.getName(PairCounter.secondFeature(interactionKey));
+		if( feature1.compareTo(feature2) > 0 ) {
+			out.write(feature2);
+			out.write('\t');
+			out.write(feature1);
+		} else {
+			out.write(feature1);
+			out.write('\t');
+			out.write(feature2);
+		}
+	}
+	
+	
+	
+	public void writeQCResults(String inputFilename, int simsToRun, FeatureDictionary dictionary, Distribution features, 
+			Distribution featuresValGt1, int[] simFeaturesCounter, 
+			int[] simFeaturesValGt1Counter, String randomString){
 		
 		//Write out the features count results
 		String featuresCountOutFilename = inputFilename + ".MonteCarloFeaturesCount." + randomString + ".txt.gz";	
 		try {
-			BufferedOutputStream FeaturesCountFileOutStream = new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(featuresCountOutFilename), 2048));
-			FeaturesCountFileOutStream.write("Feature\tObserved_Frequency\tSimulated_Average_Frequency\n".getBytes());	 
+			ResultsWriter featuresCountFileOut = new ResultsWriter(featuresCountOutFilename, compressionLevel, outputThreads);
+			featuresCountFileOut.write("Feature\tObserved_Frequency\tSimulated_Average_Frequency\n");	 
 				
-			HashMap <String, Integer> observedFeaturesCounter = features.getElementsCounter();					
-			for( String feature : observedFeaturesCounter.keySet()){
-				int obsCount = observedFeaturesCounter.get(feature);
-				float simCount = (float)simFeaturesCounter.get(feature) / simsToRun;
-				String lineToPrint = feature + "\t" + obsCount + "\t" + simCount + "\n";
-				FeaturesCountFileOutStream.write(lineToPrint.getBytes());	
+			int[] observedFeaturesCounter = features.getElementsCounter(dictionary.size());					
+			for( int feature = 0; feature < observedFeaturesCounter.length; feature++){
+				int obsCount = observedFeaturesCounter[feature];
+				if(obsCount == 0){
+					continue;
+				}
+				float simCount = (float)simFeaturesCounter[feature] / simsToRun;
+				writeFeatureCount(featuresCountFileOut, dictionary.getName(feature), obsCount, simCount);
 			}	
-			FeaturesCountFileOutStream.close();
+			featuresCountFileOut.close();
 			
 		} catch (IOException ioe) {
-			ioe.printStackTrace();
-			System.exit(1);
+			throw fail(ioe);
 		}	
 		
 		//Write out the features count results (valency > 1)
 		String featuresValGt1CountOutFilename = inputFilename + ".MonteCarloFeaturesCountValGt1." + randomString + ".txt.gz";	
 		try {
-			BufferedOutputStream FeaturesValGt1CountFileOutStream = new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(featuresValGt1CountOutFilename), 2048));
-			FeaturesValGt1CountFileOutStream.write("Feature\tObserved_Frequency\tSimulated_Average_Frequency\n".getBytes());	 
+			ResultsWriter featuresValGt1CountFileOut = new ResultsWriter(featuresValGt1CountOutFilename, compressionLevel, outputThreads);
+			featuresValGt1CountFileOut.write("Feature\tObserved_Frequency\tSimulated_Average_Frequency\n");	 
 				
-			HashMap <String, Integer> observedFeaturesValGt1Counter = featuresValGt1.getElementsCounter();					
-			for( String feature : observedFeaturesValGt1Counter.keySet()){
-				int obsValGt1Count = observedFeaturesValGt1Counter.get(feature);
-				float simValGt1Count = (float)simFeaturesValGt1Counter.get(feature) / simsToRun;
-				String lineToPrint = feature + "\t" + obsValGt1Count + "\t" + simValGt1Count + "\n";
-				FeaturesValGt1CountFileOutStream.write(lineToPrint.getBytes());	
+			int[] observedFeaturesValGt1Counter = featuresValGt1.getElementsCounter(dictionary.size());					
+			for( int feature = 0; feature < observedFeaturesValGt1Counter.length; feature++){
+				int obsValGt1Count = observedFeaturesValGt1Counter[feature];
+				if(obsValGt1Count == 0){
+					continue;
+				}
+				float simValGt1Count = (float)simFeaturesValGt1Counter[feature] / simsToRun;
+				writeFeatureCount(featuresValGt1CountFileOut, dictionary.getName(feature), obsValGt1Count, simValGt1Count);
 			}	
-			FeaturesValGt1CountFileOutStream.close();
+			featuresValGt1CountFileOut.close();
 			
 		} catch (IOException ioe) {
-			ioe.printStackTrace();
-			System.exit(1);
+			throw fail(ioe);
 		}	
 	}
 	
 	
-	
-	public void createRandomDataset(String inputFilename, int currentSimNumber, String randomString, ArrayList<String> randomDataset){
-		String randomDatasetFileName = inputFilename + ".RandomDataset." + currentSimNumber + "." + randomString + ".txt.gz"; 	
-		
-		try {
-			BufferedOutputStream RandomDatasetOutStream = new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(randomDatasetFileName), 2048));
-			RandomDatasetOutStream.write("Read_ID\tBarcode_ID\tChromosome	Feature_Start\tFeature_End\tFeature_Strand\tFeature_ID\tFeature_Name\n".getBytes());  //Header	 
-			
-			System.out.println("Writing random dataset " + currentSimNumber);
-			for(int i = 0; i < randomDataset.size(); i++){
-				String[] dataElements = randomDataset.get(i).split("\t");
-				String barcodeID = dataElements[0];   //Will be an integer, but no point parsing to int
-				String feature = dataElements[1];
-				int readID = i + 1;
-				String lineToPrint = readID + "\t" + barcodeID + "\t0\t0\t0\t0\t0\t" + feature + "\n";    //Allocate zeros to data that is not necessary nor available
-				RandomDatasetOutStream.write(lineToPrint.getBytes());			
-			}
-			RandomDatasetOutStream.close();
-			
-		} catch (IOException ioe) {
-			ioe.printStackTrace();
-			System.exit(1);
-		}			
+	private void writeFeatureCount(ResultsWriter out, String featureName, int observedCount, float simulatedAverage){
+		out.write(featureName);
+		out.write('\t');
+		out.writeLong(observedCount);
+		out.write('\t');
+		out.writeFloat(simulatedAverage);
+		out.write('\n');
 	}
 	
 }
@@ -0,0 +1,252 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+
+/**
+ * A block of decompressed input lines, parsed on a worker thread.  FileIO splits the input
+ * between barcodes, so every complex in the chunk is complete.
+ * 
+ * Only the barcode (column 2) and feature name (column 8) are extracted, straight from the bytes.
+ * Feature names get ids local to the chunk (one String per distinct name per chunk); FileIO maps 
+ * these to FeatureDictionary ids when merging the chunks back in file order.
+ * @author wingetts
+ *
+ */
+
+public class InputChunk implements Callable<InputChunk> {
+
+	private static final int BARCODE_COLUMN = 1;
+	private static final int FEATURE_COLUMN = 7;
+
+	private final byte[] data;
+	private final int length;
+
+	int numberLines = 0;
+	int numberComplexes = 0;
+	int[] barcodes = new int[1024];    //Barcode of each complex
+	int[] complexStarts = new int[1025];    //Complex i comprises features complexStarts[i] to complexStarts[i + 1] - 1
+	int[] features = new int[4096];    //Local feature ids
+	int numberFeatures = 0;
+	ArrayList<String> localFeatureNames = new ArrayList<String>();
+	String error = null;    //Set if the data could not be parsed
+
+	//Hash table of the local feature names, as byte arrays
+	private ArrayList<byte[]> localFeatureBytes = new ArrayList<byte[]>();
+	private int[] nameTable = new int[1024];    //Local feature id + 1 (0 = empty)
+	private int[] featureStamps = new int[1024];    //Complex number + 1 in which local feature was last seen
+
+
+	public InputChunk(byte[] data, int length){
+		this.data = data;
+		this.length = length;
+	}
+
+
+	public InputChunk call(){
+		int lineStart = 0;
+		int previousBarcodeID = -1;
+		while( (lineStart < length) && (error == null) ){
+			int lineEnd = lineStart;
+			while( (lineEnd < length) && (data[lineEnd] != '\n') ){
+				lineEnd++;
+			}
+			int contentEnd = lineEnd;
+			if( (contentEnd > lineStart) && (data[contentEnd - 1] == '\r') ){
+				contentEnd--;
+			}
+			if(contentEnd > lineStart){    //Ignore blank lines
+				numberLines++;
+				parseLine(lineStart, contentEnd, previousBarcodeID);
+				if(error == null){
+					previousBarcodeID = barcodes[numberComplexes - 1];
+				}
+			}
+			lineStart = lineEnd + 1;
+		}
+		complexStarts[numberComplexes] = numberFeatures;
+		return this;
+	}
+
+
+	private void parseLine(int lineStart, int lineEnd, int previousBarcodeID){
+
+		//Find the barcode and feature name columns
+		int column = 0;
+		int barcodeStart = -1;
+		int barcodeEnd = -1;
+		int featureStart = -1;
+		int featureEnd = lineEnd;
+		if(column == BARCODE_COLUMN){
+			barcodeStart = lineStart;
+		}
+		for(int i = lineStart; i < lineEnd; i++){
+			if(data[i] == '\t'){
+				column++;
+				if(column == BARCODE_COLUMN){
+					barcodeStart = i + 1;
+				} else if(column == BARCODE_COLUMN + 1){
+					barcodeEnd = i;
+				} else if(column == FEATURE_COLUMN){
+					featureStart = i + 1;
+				} else if(column == FEATURE_COLUMN + 1){
+					featureEnd = i;
+					break;
+				}
+			}
+		}
+
+		if( (barcodeEnd < 0) || (featureStart < 0) ){
+			error = "Line '" + new String(data, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8) + "' does not contain 8 tab-separated columns";
+			return;
+		}
+
+		long barcodeValue = 0;
+		for(int i = barcodeStart; i < barcodeEnd; i++){
+			int digit = data[i] - '0';
+			if( (digit < 0) || (digit > 9) || (barcodeEnd - barcodeStart > 10) ){
+				barcodeEnd = barcodeStart;
+				break;
+			}
+			barcodeValue = (barcodeValue * 10) + digit;
+		}
+		if( (barcodeEnd == barcodeStart) || (barcodeValue > Integer.MAX_VALUE) ){    //As Integer.parseInt would reject
+			error = "Could not read barcode in line '" + new String(data, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8) + "'";
+			return;
+		}
+		int barcodeID = (int)barcodeValue;
+
+		if(barcodeID < previousBarcodeID){
+			error = "Barcodes in file are not in numerical order (i.e. barcode " + previousBarcodeID + " should be less than barcode " + barcodeID + ")";
+			return;
+		}
+
+		if(barcodeID != previousBarcodeID){    //New complex
+			if(numberComplexes + 1 == barcodes.length){
+				barcodes = Arrays.copyOf(barcodes, barcodes.length * 2);
+				complexStarts = Arrays.copyOf(complexStarts, barcodes.length + 1);
+			}
+			barcodes[numberComplexes] = barcodeID;
+			complexStarts[numberComplexes] = numberFeatures;
+			numberComplexes++;
+		}
+
+		int feature = getLocalFeatureId(featureStart, featureEnd);
+		if(featureStamps[feature] == numberComplexes){
+			error = "Impossible complex (contains repeat features) in datafile";
+			return;
+		}
+		featureStamps[feature] = numberComplexes;
+
+		if(numberFeatures == features.length){
+			features = Arrays.copyOf(features, features.length * 2);
+		}
+		features[numberFeatures] = feature;
+		numberFeatures++;
+	}
+
+
+	//Returns the local id of the feature name held in data[start] to data[end - 1], allocating a new id if needed
+	private int getLocalFeatureId(int start, int end){
+		int hash = 1;
+		for(int i = start; i < end; i++){
+			hash = (31 * hash) + data[i];
+		}
+		hash ^= hash >>> 16;
+
+		int mask = nameTable.length - 1;
+		int slot = hash & mask;
+		while(nameTable[slot] != 0){
+			byte[] name = localFeatureBytes.get(nameTable[slot] - 1);
+			if(Arrays.equals(name, 0, name.length, data, start, end)){
+				return nameTable[slot] - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		int id = localFeatureBytes.size();
+		byte[] name = Arrays.copyOfRange(data, start, end);
+		localFeatureBytes.add(name);
+		localFeatureNames.add(new String(name, StandardCharsets.UTF_8));
+		nameTable[slot] = id + 1;
+		if(id == featureStamps.length){
+			featureStamps = Arrays.copyOf(featureStamps, featureStamps.length * 2);
+		}
+		if( (id + 1) * 2 > nameTable.length ){
+			rehashNames();
+		}
+		return id;
+	}
+
+
+	private void rehashNames(){
+		nameTable = new int[nameTable.length * 2];
+		int mask = nameTable.length - 1;
+		for(int id = 0; id < localFeatureBytes.size(); id++){
+			byte[] name = localFeatureBytes.get(id);
+			int hash = 1;
+			for(byte b : name){
+				hash = (31 * hash) + b;
+			}
+			hash ^= hash >>> 16;
+			int slot = hash & mask;
+			while(nameTable[slot] != 0){
+				slot = (slot + 1) & mask;
+			}
+			nameTable[slot] = id + 1;
+		}
+	}
+
+
+	//Returns the barcode of the line ending just before position end (-1 if it cannot be read)
+	static int barcodeOfLineBefore(byte[] data, int end){
+		int lineStart = end - 1;
+		while( (lineStart > 0) && (data[lineStart - 1] != '\n') ){
+			lineStart--;
+		}
+		int i = lineStart;
+		while( (i < end) && (data[i] != '\t') ){
+			i++;
+		}
+		i++;
+		long barcodeID = 0;
+		int digits = 0;
+		while( (i < end) && (data[i] >= '0') && (data[i] <= '9') && (digits < 10) ){
+			barcodeID = (barcodeID * 10) + (data[i] - '0');
+			digits++;
+			i++;
+		}
+		if( (digits == 0) || (i == end) || (data[i] != '\t') || (barcodeID > Integer.MAX_VALUE) ){
+			return -1;
+		}
+		return (int)barcodeID;
+	}
+
+}
@@ -0,0 +1,105 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.util.Arrays;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * A first-in first-out queue of ints, held in a ring buffer which doubles when full, so adding and 
+ * removing take constant time.  Used for the not added pool of SimulationWorker, where removing from 
+ * the front of an ArrayList shifted the whole pool every time.  Also records its largest size since 
+ * it was last cleared.
+ * @author wingetts
+ *
+ */
+
+public class IntQueue {
+
+	private int[] elements;    //Length is a power of two
+	private int head = 0;    //Position of the first element
+	private int size = 0;
+	private int peakSize = 0;
+	
+	
+	public IntQueue(){
+		this(16);
+	}
+	
+	
+	public IntQueue(int capacity){
+		elements = new int[Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1];
+	}
+	
+	
+	public void add(int value){
+		if(size == elements.length){
+			grow();
+		}
+		elements[(head + size) & (elements.length - 1)] = value;
+		size++;
+		if(size > peakSize){
+			peakSize = size;
+		}
+	}
+	
+	
+	//Removes and returns the first element (the queue must not be empty)
+	public int remove(){
+		int value = elements[head];
+		head = (head + 1) & (elements.length - 1);
+		size--;
+		return value;
+	}
+	
+	
+	public boolean isEmpty(){
+		return size == 0;
+	}
+	
+	
+	public int size(){
+		return size;
+	}
+	
+	
+	public int getPeakSize(){
+		return peakSize;
+	}
+	
+	
+	public void clear(){
+		head = 0;
+		size = 0;
+		peakSize = 0;
+	}
+	
+	
+	private void grow(){
+		int[] grown = Arrays.copyOf(elements, elements.length * 2);
+		System.arraycopy(elements, 0, grown, elements.length, head);    //Unwrap the elements before head
+		elements = grown;
+	}
+
+}
@@ -0,0 +1,574 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+
+/**
+ * Java version of multiple_testing_correction.pl: takes the results file of a simulation run on a
+ * random dataset (the control) and of a run on the real data, and for each real interaction
+ * calculates a p-value from a normal distribution fitted locally to the control interactions of 
+ * similar frequency, then the Benjamini-Hochberg q-values and whether each interaction passes 
+ * (FDR 0.25).  The table is written to [Results file].qval.txt.gz in the same layout as the Perl 
+ * script produces.
+ * 
+ * Each file is read once, with the results lines kept in memory to be copied to the output.  The 
+ * local standard deviations are taken from prefix sums of the squared control differences, so the 
+ * time taken does not depend on the window size.
+ * 
+ * Usage: MultipleTestingCorrection --control [Control results file] --results [Results file] [--window N] 
+ * [--compression 0-9] [--threads N]
+ * @author wingetts
+ *
+ */
+
+public class MultipleTestingCorrection {
+
+	public static final int DEFAULT_WINDOW = 500;    //Control interactions in the local distribution
+	private static final double FDR = 0.25;    //Q of the Benjamini-Hochberg test
+	private static final int BLOCK_SIZE = 16 * 1024 * 1024;    //Results lines are kept in blocks of this size
+	private static final int SORT_RUN = 32;
+	
+	private String header;
+	private int size = 0;    //Number of interactions
+	private double[] observed = new double[1024];
+	private double[] simulated = new double[1024];
+	private final boolean keepLines;
+	private final ArrayList<byte[]> blocks = new ArrayList<byte[]>();
+	private long[] lineStarts = new long[0];    //Block number << 32 | offset of each interaction's line
+	private int[] lineLengths = new int[0];    //Excluding the new line
+	
+	
+	public static void main(String[] args) {
+		
+		System.out.println("Performing multiple testing correction");
+		
+		String controlFilename = null;
+		String resultsFilename = null;
+		int window = DEFAULT_WINDOW;
+		int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+		int threads = 1;
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("--control") || args[i].equals("--results") || args[i].equals("--window") 
+					|| args[i].equals("--compression") || args[i].equals("--threads")){
+				if(i + 1 == args.length){
+					System.err.println("Option " + args[i] + " requires a value");
+					System.exit(1);
+				}
+				String option = args[i];
+				String value = args[++i];
+				if(option.equals("--control")){
+					controlFilename = value;
+				} else if(option.equals("--results")){
+					resultsFilename = value;
+				} else if(option.equals("--window")){
+					window = Math.abs(Integer.parseInt(value));
+					if(window == 0){
+						System.err.println("Local distribution window size may not be set to zero");
+						System.exit(1);
+					}
+				} else if(option.equals("--compression")){
+					compressionLevel = Integer.parseInt(value);
+					if( (compressionLevel < 0) || (compressionLevel > 9) ){
+						System.err.println("Option --compression needs to be between 0 and 9");
+						System.exit(1);
+					}
+				} else {
+					threads = Integer.parseInt(value);
+					if(threads < 1){
+						System.err.println("Option --threads needs to be 1 or more");
+						System.exit(1);
+					}
+				}
+			} else {
+				System.err.println("Option " + args[i] + " not recognised");
+				System.exit(1);
+			}
+		}
+		if( (controlFilename == null) || (resultsFilename == null) ){
+			System.err.println("Specify --control and --results Monte Carlo Simulation output files");
+			System.exit(1);
+		}
+		
+		correct(controlFilename, resultsFilename, window, compressionLevel, threads);
+		System.out.println("Processing complete");
+	}
+	
+	
+	//Writes [resultsFilename].qval.txt.gz, returning its name
+	public static String correct(String controlFilename, String resultsFilename, int window, int compressionLevel, int threads){
+		String outputFilename = resultsFilename + ".qval.txt.gz";
+		try {
+			System.out.println("Reading in control file " + controlFilename + " and results file " + resultsFilename);
+			MultipleTestingCorrection control = new MultipleTestingCorrection(controlFilename, false);
+			MultipleTestingCorrection results = new MultipleTestingCorrection(resultsFilename, true);
+			if(control.size == 0){
+				System.err.println("Control file " + controlFilename + " contains no interactions");
+				System.exit(1);
+			}
+			
+			double[] pValues = getPValues(control, results, window);
+			control = null;
+			int[] pValueOrder = stableOrder(pValues, pValues.length);
+			double[] qValues = benjamini(pValues, pValueOrder);
+			boolean[] passed = benjaminiPassedThreshold(pValues, pValueOrder);
+			
+			System.out.println("Writing results to " + outputFilename);
+			ResultsWriter out = new ResultsWriter(outputFilename, compressionLevel, threads);
+			out.write(results.header);
+			out.write("\tp(normal)\tq\tPassed_threshold\n");
+			for(int i = 0; i < results.size; i++){
+				out.write(results.blocks.get((int)(results.lineStarts[i] >>> 32)), (int)results.lineStarts[i], results.lineLengths[i]);
+				out.write('\t');
+				out.write(formatNumber(pValues[i]));
+				out.write('\t');
+				out.write(formatNumber(qValues[i]));
+				out.write(passed[i] ? "\tpass\n" : "\tfail\n");
+			}
+			out.close();
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			System.exit(1);
+		}
+		return outputFilename;
+	}
+	
+	
+	//Reads the observed and simulated frequencies (the 3rd and 4th columns) of a results file, keeping the lines if requested
+	private MultipleTestingCorrection(String filename, boolean keepLines) throws IOException {
+		this.keepLines = keepLines;
+		
+		InputStream inputStream = new FileInputStream(filename);
+		if(FileIO.isGzipped(filename)){
+			inputStream = new GZIPInputStream(inputStream, 1 << 16);
+		}
+		try (InputStream in = inputStream){
+			byte[] block = new byte[BLOCK_SIZE];
+			int filled = 0;
+			boolean endOfFile = false;
+			while(!endOfFile){
+				int bytesRead = in.read(block, filled, block.length - filled);
+				if(bytesRead < 0){
+					endOfFile = true;
+				} else {
+					filled += bytesRead;
+					if(filled < block.length){
+						continue;
+					}
+				}
+				
+				//Block full (or the input finished): take the complete lines, and carry the rest over to a new block
+				int linesEnd = filled;
+				if(!endOfFile){
+					while( (linesEnd > 0) && (block[linesEnd - 1] != '\n') ){
+						linesEnd--;
+					}
+					if(linesEnd == 0){    //A line longer than the block
+						block = Arrays.copyOf(block, block.length * 2);
+						continue;
+					}
+				}
+				addLines(block, linesEnd);
+				byte[] nextBlock = new byte[Math.max(BLOCK_SIZE, 2 * (filled - linesEnd))];
+				System.arraycopy(block, linesEnd, nextBlock, 0, filled - linesEnd);
+				filled -= linesEnd;
+				block = nextBlock;
+			}
+		}
+		if(header == null){
+			throw new IOException("File " + filename + " is empty");
+		}
+	}
+	
+	
+	private void addLines(byte[] block, int end){
+		if(keepLines){
+			blocks.add(block);
+		}
+		int lineStart = 0;
+		while(lineStart < end){
+			int lineEnd = lineStart;
+			while( (lineEnd < end) && (block[lineEnd] != '\n') ){
+				lineEnd++;
+			}
+			if(header == null){
+				header = new String(block, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+			} else if(lineEnd > lineStart){
+				addInteraction(block, lineStart, lineEnd);
+			}
+			lineStart = lineEnd + 1;
+		}
+	}
+	
+	
+	private void addInteraction(byte[] block, int lineStart, int lineEnd){
+		if(size == observed.length){
+			observed = Arrays.copyOf(observed, size * 2);
+			simulated = Arrays.copyOf(simulated, size * 2);
+		}
+		if(keepLines){
+			if(size == lineStarts.length){
+				lineStarts = Arrays.copyOf(lineStarts, Math.max(1024, size * 2));
+				lineLengths = Arrays.copyOf(lineLengths, Math.max(1024, size * 2));
+			}
+			lineStarts[size] = ( (long)(blocks.size() - 1) << 32 ) | lineStart;
+			lineLengths[size] = lineEnd - lineStart;
+		}
+		
+		int fieldStart = lineStart;
+		for(int field = 0; field < 4; field++){
+			int fieldEnd = fieldStart;
+			while( (fieldEnd < lineEnd) && (block[fieldEnd] != '\t') ){
+				fieldEnd++;
+			}
+			if(field == 2){
+				observed[size] = parseNumber(block, fieldStart, fieldEnd);
+			} else if(field == 3){
+				simulated[size] = parseNumber(block, fieldStart, fieldEnd);
+			}
+			fieldStart = Math.min(fieldEnd + 1, lineEnd);
+		}
+		size++;
+	}
+	
+	
+	//As Perl, treats text that is not a number (e.g. NA) as 0
+	private static double parseNumber(byte[] block, int start, int end){
+		try {
+			return Double.parseDouble(new String(block, start, end - start, StandardCharsets.UTF_8));
+		} catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
+	
+	
+	//For each results interaction, finds where its average frequency ((observed + simulated) / 2) falls in the sorted
+	//control averages, and returns the probability of its simulated - observed difference given a normal distribution 
+	//of mean 0 and the standard deviation of the control differences in the window around that position
+	private static double[] getPValues(MultipleTestingCorrection control, MultipleTestingCorrection results, int window){
+		int controlSize = control.size;
+		double[] controlAverages = new double[controlSize];
+		for(int i = 0; i < controlSize; i++){
+			controlAverages[i] = (control.observed[i] + control.simulated[i]) / 2;
+		}
+		int[] controlOrder = stableOrder(controlAverages, controlSize);
+		
+		//Sums of the squared differences of the sorted control interactions, as double-doubles (high + low part) so 
+		//that differences of the sums are accurate
+		double[] sumSquaresHigh = new double[controlSize + 1];
+		double[] sumSquaresLow = new double[controlSize + 1];
+		for(int i = 0; i < controlSize; i++){
+			int index = controlOrder[i];
+			double difference = control.observed[index] - control.simulated[index];
+			double square = difference * difference;
+			double sum = sumSquaresHigh[i] + square;
+			double error = (Math.abs(sumSquaresHigh[i]) >= Math.abs(square)) ? (sumSquaresHigh[i] - sum) + square : (square - sum) + sumSquaresHigh[i];
+			sumSquaresHigh[i + 1] = sum;
+			sumSquaresLow[i + 1] = sumSquaresLow[i] + error;
+		}
+		double[] sortedControlAverages = new double[controlSize];
+		for(int i = 0; i < controlSize; i++){
+			sortedControlAverages[i] = controlAverages[controlOrder[i]];
+		}
+		controlAverages = null;
+		controlOrder = null;
+		
+		//Position in the sorted control averages equivalent to each results average (as multiple_testing_correction.pl)
+		double[] resultsAverages = new double[results.size];
+		for(int i = 0; i < results.size; i++){
+			resultsAverages[i] = (results.observed[i] + results.simulated[i]) / 2;
+		}
+		int[] resultsOrder = stableOrder(resultsAverages, results.size);
+		int[] controlPositions = new int[results.size];
+		int i = 0;
+		for(int rank = 0; rank < results.size; rank++){
+			int index = resultsOrder[rank];
+			double resultsAverage = resultsAverages[index];
+			if( (rank > 0) && (resultsAverage == resultsAverages[resultsOrder[rank - 1]]) ){
+				controlPositions[index] = controlPositions[resultsOrder[rank - 1]];
+				continue;
+			}
+			
+			int position = controlSize - 1;    //Beyond the end of the control averages
+			double previousControlAverage = -1;
+			int currentRepeatsLength = 0;
+			while(i < controlSize){
+				double controlAverage = sortedControlAverages[i];
+				position = Math.max(i - 1 - (currentRepeatsLength + 1) / 2, 0);    //Back to the middle of any run of repeats
+				if(controlAverage > resultsAverage){
+					break;
+				}
+				if(controlAverage == previousControlAverage){
+					currentRepeatsLength++;
+				} else {
+					currentRepeatsLength = 0;
+				}
+				i++;
+				previousControlAverage = controlAverage;
+			}
+			controlPositions[index] = position;
+		}
+		
+		double[] pValues = new double[results.size];
+		int halfWindow = window / 2;
+		for(int index = 0; index < results.size; index++){
+			int windowStart = Math.max(controlPositions[index] - halfWindow, 0);
+			int windowEnd = Math.min(controlPositions[index] + halfWindow, controlSize - 1) + 1;    //Exclusive
+			double totalSquares = (sumSquaresHigh[windowEnd] - sumSquaresHigh[windowStart]) + (sumSquaresLow[windowEnd] - sumSquaresLow[windowStart]);
+			double stdDev = Math.pow(Math.max(totalSquares, 0) / (windowEnd - windowStart), 0.5);    //Mean assumed to be zero
+			double difference = results.simulated[index] - results.observed[index];
+			if(stdDev == 0){    //The Perl script stops with a division by zero
+				pValues[index] = (difference > 0) ? 1 : ( (difference < 0) ? 0 : 0.5 );
+			} else {
+				pValues[index] = pnorm(difference / stdDev);
+			}
+		}
+		return pValues;
+	}
+	
+	
+	//Benjamini-Hochberg adjusted p-values: the smallest of p * m / i over the p-values of rank i or higher
+	private static double[] benjamini(double[] pValues, int[] order){
+		int m = pValues.length;
+		double[] qValues = new double[m];
+		double currentMin = Double.POSITIVE_INFINITY;
+		for(int i = m; i >= 1; i--){
+			double qValue = (double)m / i * pValues[order[i - 1]];
+			currentMin = Math.min(currentMin, qValue);
+			qValues[order[i - 1]] = currentMin;
+		}
+		return qValues;
+	}
+	
+	
+	//Whether each p-value passes the Benjamini-Hochberg test: p < (i / m) Q, with everything failing after the first failure
+	private static boolean[] benjaminiPassedThreshold(double[] pValues, int[] order){
+		int m = pValues.length;
+		boolean[] passed = new boolean[m];
+		for(int i = 1; i <= m; i++){
+			if( !(pValues[order[i - 1]] < (double)i / m * FDR) ){
+				break;
+			}
+			passed[order[i - 1]] = true;
+		}
+		return passed;
+	}
+	
+	
+	//Returns the indexes of the first n values in ascending order of value, with equal values kept in index order
+	//(a merge sort, as Perl's sort).  The values are sorted alongside the indexes, so the merges read memory in order.
+	static int[] stableOrder(double[] values, int n){
+		int[] order = new int[n];
+		double[] sorted = Arrays.copyOf(values, n);
+		for(int i = 0; i < n; i++){
+			order[i] = i;
+		}
+		for(int runStart = 0; runStart < n; runStart += SORT_RUN){    //Insertion sort short runs, then merge them
+			int runEnd = Math.min(runStart + SORT_RUN, n);
+			for(int i = runStart + 1; i < runEnd; i++){
+				double value = sorted[i];
+				int index = order[i];
+				int j = i - 1;
+				while( (j >= runStart) && (sorted[j] > value) ){
+					sorted[j + 1] = sorted[j];
+					order[j + 1] = order[j];
+					j--;
+				}
+				sorted[j + 1] = value;
+				order[j + 1] = index;
+			}
+		}
+		int[] mergedOrder = new int[n];
+		double[] merged = new double[n];
+		for(int width = SORT_RUN; width < n; width *= 2){
+			for(int left = 0; left < n; left += 2 * width){
+				int middle = Math.min(left + width, n);
+				int right = Math.min(left + 2 * width, n);
+				int a = left;
+				int b = middle;
+				for(int k = left; k < right; k++){
+					if( (a < middle) && ( (b >= right) || (sorted[a] <= sorted[b]) ) ){
+						mergedOrder[k] = order[a];
+						merged[k] = sorted[a++];
+					} else {
+						mergedOrder[k] = order[b];
+						merged[k] = sorted[b++];
+					}
+				}
+			}
+			int[] swapOrder = order;
+			order = mergedOrder;
+			mergedOrder = swapOrder;
+			double[] swap = sorted;
+			sorted = merged;
+			merged = swap;
+		}
+		return order;
+	}
+	
+	
+	//Standard normal cumulative distribution function, using W. J. Cody's rational Chebyshev approximations
+	//(as the cumnor routine of DCDFLIB, used by Perl's Math::CDF::pnorm)
+	static double pnorm(double x){
+		double y = Math.abs(x);
+		double result;
+		if(y <= 0.66291){
+			double xsq = (y > 0x1p-53) ? x * x : 0;
+			double xnum = PNORM_A[4] * xsq;
+			double xden = xsq;
+			for(int i = 0; i < 3; i++){
+				xnum = (xnum + PNORM_A[i]) * xsq;
+				xden = (xden + PNORM_B[i]) * xsq;
+			}
+			result = 0.5 + x * (xnum + PNORM_A[3]) / (xden + PNORM_B[3]);
+		} else {
+			if(y <= 5.656854248){
+				double xnum = PNORM_C[8] * y;
+				double xden = y;
+				for(int i = 0; i < 7; i++){
+					xnum = (xnum + PNORM_C[i]) * y;
+					xden = (xden + PNORM_D[i]) * y;
+				}
+				result = (xnum + PNORM_C[7]) / (xden + PNORM_D[7]);
+			} else {
+				double xsq = 1 / (x * x);
+				double xnum = PNORM_P[5] * xsq;
+				double xden = xsq;
+				for(int i = 0; i < 4; i++){
+					xnum = (xnum + PNORM_P[i]) * xsq;
+					xden = (xden + PNORM_Q[i]) * xsq;
+				}
+				result = xsq * (xnum + PNORM_P[4]) / (xden + PNORM_Q[4]);
+				result = (0.39894228040143267794 - result) / y;
+			}
+			double xsq = (long)(y * 16) / 16.0;
+			double del = (y - xsq) * (y + xsq);
+			result = Math.exp(-xsq * xsq * 0.5) * Math.exp(-del * 0.5) * result;
+			if(x > 0){
+				result = 1 - result;
+			}
+		}
+		return (result < Double.MIN_NORMAL) ? 0 : result;
+	}
+	
+	private static final double[] PNORM_A = {2.2352520354606839287e00, 1.6102823106855587881e02, 1.0676894854603709582e03, 
+			1.8154981253343561249e04, 6.5682337918207449113e-2};
+	private static final double[] PNORM_B = {4.7202581904688241870e01, 9.7609855173777669322e02, 1.0260932208618978205e04, 
+			4.5507789335026729956e04};
+	private static final double[] PNORM_C = {3.9894151208813466764e-1, 8.8831497943883759412e00, 9.3506656132177855979e01, 
+			5.9727027639480026226e02, 2.4945375852903726711e03, 6.8481904505362823326e03, 1.1602651437647350124e04, 
+			9.8427148383839780218e03, 1.0765576773720192317e-8};
+	private static final double[] PNORM_D = {2.2266688044328115691e01, 2.3538790178262499861e02, 1.5193775994075548050e03, 
+			6.4855582982667607550e03, 1.8615571640885098091e04, 3.4900952721145977266e04, 3.8912003286093271411e04, 
+			1.9685429676859990727e04};
+	private static final double[] PNORM_P = {2.1589853405795699e-1, 1.274011611602473639e-1, 2.2235277870649807e-2, 
+			1.421619193227893466e-3, 2.9112874951168792e-5, 2.307344176494017303e-2};
+	private static final double[] PNORM_Q = {1.28426009614491121e00, 4.68238212480865118e-1, 6.59881378689285515e-2, 
+			3.78239633202758244e-3, 7.29751555083966205e-5};
+	
+	
+	//Formats a number as Perl prints it (i.e. printf's %.15g)
+	static String formatNumber(double value){
+		if( Double.isNaN(value) || Double.isInfinite(value) ){
+			return Double.isNaN(value) ? "NaN" : ( (value > 0) ? "Inf" : "-Inf" );
+		}
+		if(value == 0){
+			return "0";
+		}
+		
+		//The 15 significant digits, scaling by a power of ten held exactly in a double where possible.  The scaled value is 
+		//then within half an ulp of the exact product, so rounds the same way unless it is that close to halfway between two integers.
+		long digits = -1;
+		int exponent = (int)Math.floor(Math.log10(Math.abs(value)));
+		for(int attempt = 0; (attempt < 2) && (digits < 0) && (Math.abs(14 - exponent) <= 22); attempt++){
+			double scaled = (exponent <= 14) ? Math.abs(value) * POWERS_OF_TEN[14 - exponent] : Math.abs(value) / POWERS_OF_TEN[exponent - 14];
+			if(Math.abs(scaled - Math.floor(scaled) - 0.5) <= Math.ulp(scaled) / 2){
+				break;
+			} else if(scaled >= 999_999_999_999_999.5){    //Exponent underestimated
+				exponent++;
+			} else if(scaled < 99_999_999_999_999.5){    //Overestimated
+				exponent--;
+			} else {
+				digits = (long)Math.rint(scaled);
+			}
+		}
+		if(digits < 0){    //Round exactly
+			BigDecimal rounded = new BigDecimal(Math.abs(value)).round(new MathContext(15, RoundingMode.HALF_EVEN));
+			exponent = rounded.precision() - rounded.scale() - 1;
+			digits = rounded.movePointRight(14 - exponent).longValueExact();
+		}
+		
+		String digitString = Long.toString(digits);
+		int length = 15;
+		while(digitString.charAt(length - 1) == '0'){
+			length--;
+		}
+		StringBuilder formatted = new StringBuilder(24);
+		if(value < 0){
+			formatted.append('-');
+		}
+		if( (exponent < -4) || (exponent >= 15) ){
+			formatted.append(digitString.charAt(0));
+			if(length > 1){
+				formatted.append('.').append(digitString, 1, length);
+			}
+			formatted.append( (exponent < 0) ? "e-" : "e+" );
+			if(Math.abs(exponent) < 10){
+				formatted.append('0');
+			}
+			formatted.append(Math.abs(exponent));
+		} else if(exponent < 0){
+			formatted.append("0.");
+			for(int i = -1; i > exponent; i--){
+				formatted.append('0');
+			}
+			formatted.append(digitString, 0, length);
+		} else {
+			formatted.append(digitString, 0, Math.min(exponent + 1, length));
+			for(int i = length; i <= exponent; i++){
+				formatted.append('0');
+			}
+			if(length > exponent + 1){
+				formatted.append('.').append(digitString, exponent + 1, length);
+			}
+		}
+		return formatted.toString();
+	}
+	
+	private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 
+			1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+}
@@ -0,0 +1,177 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * Extra statistics of the null distribution of each interaction, collected from the same simulations as
+ * the simulation score (the --moments and --quantiles options of Simulation): the sum of the squared 
+ * differences between the simulated and observed counts, giving the variance of the simulated counts and 
+ * a z-score, and for selected interactions a QuantileSketch of the simulated counts.  The sums are exact 
+ * integers, so (like the other tallies) they do not depend on how the simulations were split between threads.
+ * @author wingetts
+ *
+ */
+
+public class NullStatistics {
+
+	public static final double[] QUANTILES = {0.01, 0.05, 0.25, 0.5, 0.75, 0.95, 0.99};
+
+	final long[] squaredDeviations;    //Indexed by PairIndex number
+	final int[] sketchedInteractions;    //PairIndex numbers of the interactions with a sketch, in the order requested
+	final QuantileSketch[] sketches;
+	
+	
+	public NullStatistics(int numberInteractions, int[] sketchedInteractions){
+		squaredDeviations = new long[numberInteractions];
+		this.sketchedInteractions = sketchedInteractions;
+		sketches = new QuantileSketch[sketchedInteractions.length];
+		for(int i = 0; i < sketches.length; i++){
+			sketches[i] = new QuantileSketch();
+		}
+	}
+	
+	
+	//Returns the PairIndex numbers of the named pairs, skipping (with a warning) those not observed in the dataset
+	public static int[] findInteractions(List<String[]> pairNames, FeatureDictionary dictionary, PairIndex observedInteractions){
+		List<Integer> found = new ArrayList<Integer>();
+		for(String[] names : pairNames){
+			int feature1 = dictionary.lookupId(names[0]);
+			int feature2 = dictionary.lookupId(names[1]);
+			int index = ( (feature1 < 0) || (feature2 < 0) || (feature1 == feature2) ) ? -1 
+					: observedInteractions.indexOf(PairCounter.pairKey(feature1, feature2));
+			if(index < 0){
+				System.out.println("Interaction " + names[0] + " " + names[1] + " not observed, so has no quantiles");
+			} else if(!found.contains(index)){
+				found.add(index);
+			}
+		}
+		int[] interactions = new int[found.size()];
+		for(int i = 0; i < interactions.length; i++){
+			interactions[i] = found.get(i);
+		}
+		return interactions;
+	}
+	
+	
+	//Returns empty statistics for the same interactions (for a worker)
+	public NullStatistics emptyCopy(){
+		return new NullStatistics(squaredDeviations.length, sketchedInteractions);
+	}
+	
+	
+	public void clear(){
+		Arrays.fill(squaredDeviations, 0);
+		for(QuantileSketch sketch : sketches){
+			sketch.clear();
+		}
+	}
+	
+	
+	//Records a finished simulation, for which each interaction's count was its observed count less its decrementer
+	public void addSimulation(int[] observedCounts, int[] simInteractionsDecrementer){
+		for(int index = 0; index < squaredDeviations.length; index++){
+			long deviation = simInteractionsDecrementer[index];
+			squaredDeviations[index] += deviation * deviation;
+		}
+		for(int i = 0; i < sketches.length; i++){
+			int index = sketchedInteractions[i];
+			sketches[i].add(observedCounts[index] - simInteractionsDecrementer[index]);
+		}
+	}
+	
+	
+	//Adds another's statistics to these, except for retired interactions (retired may be null)
+	public void mergeFrom(NullStatistics other, boolean[] retired){
+		for(int index = 0; index < squaredDeviations.length; index++){
+			if( (retired != null) && retired[index] ){
+				continue;
+			}
+			squaredDeviations[index] += other.squaredDeviations[index];
+		}
+		for(int i = 0; i < sketches.length; i++){
+			if( (retired != null) && retired[sketchedInteractions[i]] ){
+				continue;
+			}
+			sketches[i].addAll(other.sketches[i]);
+		}
+	}
+	
+	
+	//Returns the (sample) variance of an interaction's simulated counts, or NaN if there were fewer than 2 simulations
+	public double variance(int index, int sims, long simCumulativeInteractions, int observed){
+		if(sims < 2){
+			return Double.NaN;
+		}
+		long sumDeviations = simCumulativeInteractions - (long)sims * observed;
+		double variance = (squaredDeviations[index] - sumDeviations * ( (double)sumDeviations / sims) ) / (sims - 1);
+		return Math.max(variance, 0);    //Rounding may leave a tiny negative
+	}
+	
+	
+	//Whether another's statistics cover the same interactions and sketches (when resuming from a checkpoint)
+	public boolean sameSettings(NullStatistics other){
+		return (other != null) && (squaredDeviations.length == other.squaredDeviations.length) 
+				&& Arrays.equals(sketchedInteractions, other.sketchedInteractions);
+	}
+	
+	
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(squaredDeviations.length);
+		for(long value : squaredDeviations){
+			out.writeLong(value);
+		}
+		out.writeInt(sketches.length);
+		for(int i = 0; i < sketches.length; i++){
+			out.writeInt(sketchedInteractions[i]);
+			sketches[i].write(out);
+		}
+	}
+	
+	
+	public static NullStatistics read(DataInputStream in) throws IOException {
+		long[] squaredDeviations = new long[in.readInt()];
+		for(int i = 0; i < squaredDeviations.length; i++){
+			squaredDeviations[i] = in.readLong();
+		}
+		int[] sketchedInteractions = new int[in.readInt()];
+		QuantileSketch[] sketches = new QuantileSketch[sketchedInteractions.length];
+		for(int i = 0; i < sketches.length; i++){
+			sketchedInteractions[i] = in.readInt();
+			sketches[i] = QuantileSketch.read(in);
+		}
+		NullStatistics statistics = new NullStatistics(squaredDeviations.length, sketchedInteractions);
+		System.arraycopy(squaredDeviations, 0, statistics.squaredDeviations, 0, squaredDeviations.length);
+		System.arraycopy(sketches, 0, statistics.sketches, 0, sketches.length);
+		return statistics;
+	}
+
+}
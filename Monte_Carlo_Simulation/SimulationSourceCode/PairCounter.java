@@ -0,0 +1,196 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+
+/**
+ * Counts interactions between pairs of features.  Each pair is packed into a single long
+ * (lower feature id in the upper 32 bits), and the counts are held in an open-addressing
+ * hash table of primitives, so no objects are created per pair.
+ * 
+ * The key 0 (feature 0 paired with itself) can never describe an interaction and so marks
+ * an empty slot.
+ * @author wingetts
+ *
+ */
+
+public class PairCounter {
+
+	private static final long EMPTY = 0L;
+
+	long[] keys;
+	int[] values;
+	int size;
+	int mask;
+
+
+	public PairCounter(){
+		this(16);
+	}
+
+
+	public PairCounter(int expectedPairs){
+		int capacity = Integer.highestOneBit(Math.max(expectedPairs, 8) * 2 - 1) << 1;    //Load factor no more than 0.5
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+	}
+
+
+	//Packs two different feature ids into a pair key (the order of the ids does not matter)
+	public static long pairKey(int featureA, int featureB){
+		if(featureA < featureB){
+			return ((long)featureA << 32) | featureB;
+		} else {
+			return ((long)featureB << 32) | featureA;
+		}
+	}
+
+
+	public static int firstFeature(long pairKey){
+		return (int)(pairKey >>> 32);
+	}
+
+
+	public static int secondFeature(long pairKey){
+		return (int)pairKey;
+	}
+
+
+	static int hash(long key){    //Murmur3 finaliser (also used by PairIndex)
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+
+	//Returns the slot holding the key, or -1 if absent
+	public int slotOf(long key){
+		int slot = hash(key) & mask;
+		while(keys[slot] != EMPTY){
+			if(keys[slot] == key){
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+
+	public boolean containsKey(long key){
+		return slotOf(key) >= 0;
+	}
+
+
+	//Returns the count for the key (0 if absent)
+	public int get(long key){
+		int slot = slotOf(key);
+		if(slot < 0){
+			return 0;
+		}
+		return values[slot];
+	}
+
+
+	public void put(long key, int value){
+		values[insertionSlot(key)] = value;
+	}
+
+
+	//Adds to the count for the key (inserting it if absent) and returns the new count
+	public int add(long key, int delta){
+		int slot = insertionSlot(key);
+		values[slot] += delta;
+		return values[slot];
+	}
+
+
+	public int increment(long key){
+		return add(key, 1);
+	}
+
+
+	private int insertionSlot(long key){
+		int slot = hash(key) & mask;
+		while(keys[slot] != EMPTY){
+			if(keys[slot] == key){
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		if( (size + 1) * 2 > keys.length ){    //Grow, then find the slot again
+			rehash(keys.length * 2);
+			return insertionSlot(key);
+		}
+		keys[slot] = key;
+		size++;
+		return slot;
+	}
+
+
+	private void rehash(int newCapacity){
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[newCapacity];
+		values = new int[newCapacity];
+		mask = newCapacity - 1;
+		for(int i = 0; i < oldKeys.length; i++){
+			if(oldKeys[i] != EMPTY){
+				int slot = hash(oldKeys[i]) & mask;
+				while(keys[slot] != EMPTY){
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+
+	public int size(){
+		return size;
+	}
+
+
+	//Slot access, for iterating over every pair: slots with a key of 0 are unused
+	public int capacity(){
+		return keys.length;
+	}
+
+
+	public long keyAt(int slot){
+		return keys[slot];
+	}
+
+
+	public int valueAt(int slot){
+		return values[slot];
+	}
+
+}
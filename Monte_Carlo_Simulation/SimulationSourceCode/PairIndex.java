@@ -0,0 +1,135 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.util.Arrays;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+
+/**
+ * An immutable index of the observed interactions.  Each observed pair key (see PairCounter.pairKey)
+ * is given a dense index: its position in the sorted array of keys.  Counters for the observed 
+ * interactions can then be plain arrays, indexed by this number, and reset with a single array copy.
+ * 
+ * Keys are looked up through an open-addressing hash table holding index + 1 (0 = empty slot).
+ * @author wingetts
+ *
+ */
+
+public class PairIndex {
+
+	private final long[] keys;    //Ascending
+	private final int[] observedCounts;
+	private final int[] table;
+	private final int mask;
+
+
+	public PairIndex(PairCounter interactionsCounter){
+		this(getSortedKeys(interactionsCounter), null, interactionsCounter);
+	}
+
+
+	//Keys need to be in ascending order
+	public PairIndex(long[] sortedKeys, int[] observedCounts){
+		this(sortedKeys, observedCounts, null);
+	}
+
+
+	private PairIndex(long[] sortedKeys, int[] observedCounts, PairCounter interactionsCounter){
+		keys = sortedKeys;
+		if(interactionsCounter != null){
+			observedCounts = new int[keys.length];
+			for(int i = 0; i < keys.length; i++){
+				observedCounts[i] = interactionsCounter.get(keys[i]);
+			}
+		}
+		this.observedCounts = observedCounts;
+
+		int capacity = Integer.highestOneBit(Math.max(keys.length, 4) * 2 - 1) << 1;    //Load factor no more than 0.5
+		table = new int[capacity];
+		mask = capacity - 1;
+		for(int i = 0; i < keys.length; i++){
+			int slot = PairCounter.hash(keys[i]) & mask;
+			while(table[slot] != 0){
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = i + 1;
+		}
+	}
+
+
+	private static long[] getSortedKeys(PairCounter interactionsCounter){
+		long[] sortedKeys = new long[interactionsCounter.size()];
+		int i = 0;
+		for(int slot = 0; slot < interactionsCounter.capacity(); slot++){
+			if(interactionsCounter.keyAt(slot) != 0){
+				sortedKeys[i++] = interactionsCounter.keyAt(slot);
+			}
+		}
+		Arrays.sort(sortedKeys);
+		return sortedKeys;
+	}
+
+
+	//Returns the index of the pair, or -1 if it was not observed
+	public int indexOf(long pairKey){
+		int slot = PairCounter.hash(pairKey) & mask;
+		while(table[slot] != 0){
+			int index = table[slot] - 1;
+			if(keys[index] == pairKey){
+				return index;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+
+	public int size(){
+		return keys.length;
+	}
+
+
+	public long keyAt(int index){
+		return keys[index];
+	}
+
+
+	public int observedAt(int index){
+		return observedCounts[index];
+	}
+
+
+	//The observed counts, by index (not to be modified)
+	public int[] getObservedCounts(){
+		return observedCounts;
+	}
+
+
+	//Heap used by the keys, counts and hash table, in bytes
+	public long memoryBytes(){
+		return (keys.length * 8L) + (observedCounts.length * 4L) + (table.length * 4L);
+	}
+
+}
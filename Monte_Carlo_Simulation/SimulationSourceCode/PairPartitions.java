@@ -0,0 +1,175 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.util.Arrays;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * Splits the observed interactions into partitions for the memory-bounded mode (--partitions), so that
+ * only one partition's PairIndex and interaction counters need to be held at a time.  Partition p covers 
+ * the pairs whose lower feature id is from firstFeatures[p] to firstFeatures[p + 1] - 1.  As PairIndex keys
+ * are sorted by lower then higher feature id, writing out the partitions in turn gives the rows of a single pass.
+ * 
+ * The pairs are found from the dataset's complexes (which need to have been kept), through an inverted
+ * index listing the complexes of each feature: feature f is in complexes complexIds[featureStarts[f]] to 
+ * complexIds[featureStarts[f + 1] - 1].  The boundaries give each partition a similar number of distinct pairs.
+ * @author wingetts
+ *
+ */
+
+public class PairPartitions {
+
+	private final Dataset dataset;
+	private final int[] featureStarts;
+	private final int[] complexIds;
+	private final int[] distinctPartners;    //Number of observed partners with a higher id, for each feature
+	private final int[] firstFeatures;
+	
+	private final int[] partnerStamps;    //Re-used when collecting a feature's partners (see collectPartners)
+	private int currentStamp = 0;
+	private final int[] partnerCounts;
+	private final int[] partners;
+	
+	
+	public PairPartitions(Dataset dataset, int numberPartitions){
+		this.dataset = dataset;
+		int numberFeatureIds = dataset.dictionary.size();
+		
+		featureStarts = new int[numberFeatureIds + 1];
+		for(int i = 0; i < dataset.complexFeatures.limit(); i++){
+			featureStarts[dataset.complexFeatures.get(i) + 1]++;
+		}
+		for(int feature = 0; feature < numberFeatureIds; feature++){
+			featureStarts[feature + 1] += featureStarts[feature];
+		}
+		complexIds = new int[dataset.complexFeatures.limit()];
+		int[] filled = Arrays.copyOf(featureStarts, numberFeatureIds);
+		for(int complex = 0; complex < dataset.numberComplexes; complex++){
+			for(int i = dataset.complexStarts.get(complex); i < dataset.complexStarts.get(complex + 1); i++){
+				complexIds[filled[dataset.complexFeatures.get(i)]++] = complex;
+			}
+		}
+		
+		partnerStamps = new int[numberFeatureIds];
+		partnerCounts = new int[numberFeatureIds];
+		partners = new int[numberFeatureIds];
+		distinctPartners = new int[numberFeatureIds];
+		long totalPairs = 0;
+		for(int feature = 0; feature < numberFeatureIds; feature++){
+			distinctPartners[feature] = collectPartners(feature);
+			totalPairs += distinctPartners[feature];
+		}
+		
+		int[] shareStarts = new int[numberPartitions + 1];    //Each share starts at the first feature taking the pairs so far to it
+		long pairsSoFar = 0;
+		int share = 1;
+		for(int feature = 0; (feature < numberFeatureIds) && (share < numberPartitions); feature++){
+			while( (share < numberPartitions) && (pairsSoFar >= totalPairs * share / numberPartitions) ){
+				shareStarts[share++] = feature;
+			}
+			pairsSoFar += distinctPartners[feature];
+		}
+		while(share <= numberPartitions){
+			shareStarts[share++] = numberFeatureIds;
+		}
+		
+		int[] starts = new int[numberPartitions + 1];    //Leaves out the shares with no pairs (e.g. when there are more partitions than features with partners)
+		int partitions = 0;
+		for(share = 0; share < numberPartitions; share++){
+			long sharePairs = 0;
+			for(int feature = shareStarts[share]; feature < shareStarts[share + 1]; feature++){
+				sharePairs += distinctPartners[feature];
+			}
+			if(sharePairs > 0){
+				starts[partitions++] = shareStarts[share];
+			}
+		}
+		starts[0] = 0;    //The first partition takes in any features before it (or every feature, if there are no pairs)
+		partitions = Math.max(partitions, 1);
+		starts[partitions] = numberFeatureIds;
+		firstFeatures = Arrays.copyOf(starts, partitions + 1);
+	}
+	
+	
+	public int size(){
+		return firstFeatures.length - 1;
+	}
+	
+	
+	//Indexes the observed interactions of the partition
+	public PairIndex indexPartition(int partition){
+		int numberPairs = 0;
+		for(int feature = firstFeatures[partition]; feature < firstFeatures[partition + 1]; feature++){
+			numberPairs += distinctPartners[feature];
+		}
+		long[] sortedKeys = new long[numberPairs];
+		int[] observedCounts = new int[numberPairs];
+		int pair = 0;
+		for(int feature = firstFeatures[partition]; feature < firstFeatures[partition + 1]; feature++){
+			int numberPartners = collectPartners(feature);
+			Arrays.sort(partners, 0, numberPartners);
+			for(int i = 0; i < numberPartners; i++){
+				sortedKeys[pair] = PairCounter.pairKey(feature, partners[i]);
+				observedCounts[pair++] = partnerCounts[partners[i]];
+			}
+		}
+		return new PairIndex(sortedKeys, observedCounts);
+	}
+	
+	
+	//Lists the feature's partners with higher ids in partners (unsorted), and the number of complexes each
+	//shares with the feature in partnerCounts, returning the number of partners
+	private int collectPartners(int feature){
+		int numberPartners = 0;
+		int stamp = ++currentStamp;    //Marks the partners found by this call
+		for(int i = featureStarts[feature]; i < featureStarts[feature + 1]; i++){
+			int complex = complexIds[i];
+			for(int j = dataset.complexStarts.get(complex); j < dataset.complexStarts.get(complex + 1); j++){
+				int partner = dataset.complexFeatures.get(j);
+				if(partner > feature){
+					if(partnerStamps[partner] != stamp){
+						partnerStamps[partner] = stamp;
+						partnerCounts[partner] = 0;
+						partners[numberPartners++] = partner;
+					}
+					partnerCounts[partner]++;
+				}
+			}
+		}
+		return numberPartners;
+	}
+	
+	
+	//Lowest and highest (plus one) lower feature ids of the partition's pairs
+	public int getFirstFeature(int partition){
+		return firstFeatures[partition];
+	}
+	
+	
+	public int getEndFeature(int partition){
+		return firstFeatures[partition + 1];
+	}
+
+}
@@ -0,0 +1,187 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+
+
+/**
+ * Reads and writes the binary partial-results file of a simulation job, so that the results of
+ * many jobs on the same input can be combined exactly (see Collate).
+ * 
+ * Layout (big-endian, gzip compressed):
+ * 	header: magic, number of simulations run, random number seed, number of the first simulation,
+ * 		number of feature names, number of records
+ * 	names: the feature names in ascending (String) order, each written with writeUTF
+ * 	records, ordered by first then second name: index of the first and second names (the first 
+ * 		being the lower), observed count, cumulative simulated count, simulation score (number of 
+ * 		simulations in which the interaction was simulated as often as observed) and the number of 
+ * 		simulations for which the interaction was followed
+ * 
+ * As the records are sorted by name, rather than by feature id, files from separate jobs can be 
+ * merged a record at a time.
+ * @author wingetts
+ *
+ */
+
+public class PartialResults implements Comparable<PartialResults> {
+
+	private static final long MAGIC = 0x4343504152540001L;    //"CCPART", version 1
+
+	DataInputStream in;
+	String filename;
+	String[] names;
+	long simsRun;
+	long seed;
+	int firstRunSimNumber;    //The simulations run were numbered firstRunSimNumber to firstRunSimNumber + simsRun - 1
+	long numberRecords;
+	long recordsRead = 0;
+	
+	int firstName;    //The current record (set by next)
+	int secondName;
+	int observed;
+	long cumulative;
+	int simScore;
+	int sims;
+
+
+	//Writes the results of a run.  interactionSims (may be null) gives the number of simulations for which each 
+	//interaction was followed, otherwise this is simsRun.
+	public static void write(String partialFilename, long simsRun, long seed, int firstRunSimNumber, FeatureDictionary dictionary, 
+			PairIndex observedInteractions, long[] simCumulativeInteractions, int[] compObsSimCounter, int[] interactionSims) throws IOException {
+		
+		//Rank the features by name, and order the interactions by the ranks of their features
+		String[] sortedNames = new String[dictionary.size()];
+		for(int id = 0; id < dictionary.size(); id++){
+			sortedNames[id] = dictionary.getName(id);
+		}
+		Arrays.sort(sortedNames);
+		int[] ranks = new int[dictionary.size()];
+		int[] idsByRank = new int[dictionary.size()];
+		for(int rank = 0; rank < sortedNames.length; rank++){
+			int id = dictionary.lookupId(sortedNames[rank]);
+			ranks[id] = rank;
+			idsByRank[rank] = id;
+		}
+		
+		long[] rankKeys = new long[observedInteractions.size()];
+		for(int index = 0; index < observedInteractions.size(); index++){
+			long key = observedInteractions.keyAt(index);
+			rankKeys[index] = PairCounter.pairKey(ranks[PairCounter.firstFeature(key)], ranks[PairCounter.secondFeature(key)]);
+		}
+		Arrays.sort(rankKeys);
+		
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(partialFilename), 1 << 16), 1 << 16))) {
+			out.writeLong(MAGIC);
+			out.writeLong(simsRun);
+			out.writeLong(seed);
+			out.writeInt(firstRunSimNumber);
+			out.writeInt(sortedNames.length);
+			out.writeLong(rankKeys.length);
+			for(String name : sortedNames){
+				out.writeUTF(name);
+			}
+			
+			for(long rankKey : rankKeys){
+				int firstRank = PairCounter.firstFeature(rankKey);
+				int secondRank = PairCounter.secondFeature(rankKey);
+				int index = observedInteractions.indexOf(PairCounter.pairKey(idsByRank[firstRank], idsByRank[secondRank]));
+				out.writeInt(firstRank);
+				out.writeInt(secondRank);
+				out.writeInt(observedInteractions.observedAt(index));
+				out.writeLong(simCumulativeInteractions[index]);
+				out.writeInt(compObsSimCounter[index]);
+				out.writeInt( (interactionSims == null) ? (int)simsRun : interactionSims[index] );
+			}
+		}
+	}
+	
+	
+	//Opens a partial-results file and reads its header and names, ready for the records to be read with next()
+	public PartialResults(String filename) throws IOException {
+		this.filename = filename;
+		in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(filename), 1 << 16), 1 << 16));
+		if(in.readLong() != MAGIC){
+			in.close();
+			throw new IOException("'" + filename + "' is not a partial-results file");
+		}
+		simsRun = in.readLong();
+		seed = in.readLong();
+		firstRunSimNumber = in.readInt();
+		names = new String[in.readInt()];
+		numberRecords = in.readLong();
+		for(int i = 0; i < names.length; i++){
+			names[i] = in.readUTF();
+		}
+	}
+	
+	
+	//Moves on to the next record, returning false (and closing the file) once all have been read
+	public boolean next() throws IOException {
+		if(recordsRead == numberRecords){
+			in.close();
+			return false;
+		}
+		firstName = in.readInt();
+		secondName = in.readInt();
+		observed = in.readInt();
+		cumulative = in.readLong();
+		simScore = in.readInt();
+		sims = in.readInt();
+		recordsRead++;
+		return true;
+	}
+	
+	
+	public String getFirstName(){
+		return names[firstName];
+	}
+	
+	
+	public String getSecondName(){
+		return names[secondName];
+	}
+	
+	
+	//Orders the current records of two files by first then second name
+	public int compareTo(PartialResults other){
+		int comparison = getFirstName().compareTo(other.getFirstName());
+		if(comparison == 0){
+			comparison = getSecondName().compareTo(other.getSecondName());
+		}
+		return comparison;
+	}
+	
+}
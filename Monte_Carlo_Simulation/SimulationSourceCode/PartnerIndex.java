@@ -0,0 +1,89 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+
+/**
+ * For each feature, lists the features it was observed to interact with, so a simulated 
+ * complex only needs to test pairs that could match an observed interaction.
+ * 
+ * Each pair is listed once, against its lower feature id: feature a's partners (all with ids
+ * greater than a) are partnerIds[partnerStarts[a]] to partnerIds[partnerEnds[a] - 1], in 
+ * ascending order, and pairNumbers gives the matching PairIndex number.  As PairIndex keys are
+ * sorted by lower then higher feature id, each feature's partners are a contiguous run of the index.
+ * @author wingetts
+ *
+ */
+
+public class PartnerIndex {
+
+	int[] partnerStarts;
+	int[] partnerEnds;
+	int[] partnerIds;
+	int[] pairNumbers;
+
+
+	public PartnerIndex(PairIndex observedInteractions, int numberFeatureIds){
+		this(observedInteractions, numberFeatureIds, null);
+	}
+	
+	
+	//Only lists the pairs not flagged as retired (retired may be null, in which case all pairs are listed)
+	public PartnerIndex(PairIndex observedInteractions, int numberFeatureIds, boolean[] retired){
+		int numberPairs = 0;
+		for(int index = 0; index < observedInteractions.size(); index++){
+			if( (retired == null) || !retired[index] ){
+				numberPairs++;
+			}
+		}
+		
+		partnerStarts = new int[numberFeatureIds];
+		partnerEnds = new int[numberFeatureIds];
+		partnerIds = new int[numberPairs];
+		pairNumbers = new int[numberPairs];
+
+		int index = 0;
+		int partner = 0;
+		for(int feature = 0; feature < numberFeatureIds; feature++){
+			partnerStarts[feature] = partner;
+			while( (index < observedInteractions.size()) && (PairCounter.firstFeature(observedInteractions.keyAt(index)) == feature) ){
+				if( (retired == null) || !retired[index] ){
+					partnerIds[partner] = PairCounter.secondFeature(observedInteractions.keyAt(index));
+					pairNumbers[partner] = index;
+					partner++;
+				}
+				index++;
+			}
+			partnerEnds[feature] = partner;
+		}
+	}
+
+
+	//Number of partners with a higher id than the feature
+	public int getDegree(int feature){
+		return partnerEnds[feature] - partnerStarts[feature];
+	}
+
+}
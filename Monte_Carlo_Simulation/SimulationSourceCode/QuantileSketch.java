@@ -0,0 +1,170 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * A fixed-size histogram of the simulated counts of one interaction, from which quantiles of its null 
+ * distribution are estimated.  Each of the BINS bins covers a power-of-two run of counts (starting at a
+ * multiple of that power), and the bins are only widened when the counts no longer span BINS of them.  The 
+ * bin width therefore depends only on the smallest and largest counts added, so sketches of different 
+ * simulations merge into exactly the sketch that adding all the counts to one would have given.
+ * @author wingetts
+ *
+ */
+
+public class QuantileSketch {
+
+	static final int BINS = 256;
+	
+	private long[] counts = new long[BINS];
+	private int shift = 0;    //Each bin covers 2^shift counts
+	private int minValue;    //Smallest and largest counts added (counts[0] is the bin of minValue)
+	private int maxValue;
+	private long total = 0;
+	
+	
+	public void add(int value){
+		add(value, 1);
+	}
+	
+	
+	public void add(int value, long count){
+		if(total == 0){
+			minValue = value;
+			maxValue = value;
+		} else if( (value < minValue) || (value > maxValue) ){
+			rebin(Math.min(value, minValue), Math.max(value, maxValue), shift);
+		}
+		counts[(value >> shift) - (minValue >> shift)] += count;
+		total += count;
+	}
+	
+	
+	//Adds the counts of another sketch
+	public void addAll(QuantileSketch other){
+		if(other.total == 0){
+			return;
+		}
+		if(total == 0){
+			minValue = other.minValue;
+			maxValue = other.maxValue;
+			shift = other.shift;
+		} else {
+			rebin(Math.min(other.minValue, minValue), Math.max(other.maxValue, maxValue), Math.max(shift, other.shift));
+		}
+		int otherFirstBin = other.minValue >> other.shift;
+		int otherBins = (other.maxValue >> other.shift) - otherFirstBin + 1;
+		for(int i = 0; i < otherBins; i++){
+			if(other.counts[i] != 0){
+				int lowValue = (otherFirstBin + i) << other.shift;
+				counts[(lowValue >> shift) - (minValue >> shift)] += other.counts[i];
+			}
+		}
+		total += other.total;
+	}
+	
+	
+	public void clear(){
+		Arrays.fill(counts, 0);
+		shift = 0;
+		total = 0;
+	}
+	
+	
+	public long getTotal(){
+		return total;
+	}
+	
+	
+	//Returns the smallest count at or below which a fraction q of the counts lie, interpolated within the bin when 
+	//the bins are wider than one count
+	public double quantile(double q){
+		if(total == 0){
+			return Double.NaN;
+		}
+		long rank = Math.max(1, (long)Math.ceil(q * total));
+		int firstBin = minValue >> shift;
+		long cumulative = 0;
+		for(int i = 0; ; i++){
+			if(cumulative + counts[i] >= rank){
+				int lowValue = Math.max((firstBin + i) << shift, minValue);
+				int highValue = Math.min( ( (firstBin + i + 1) << shift ) - 1, maxValue);
+				return lowValue + (highValue - lowValue) * (double)(rank - cumulative) / counts[i];
+			}
+			cumulative += counts[i];
+		}
+	}
+	
+	
+	//Moves the counts into bins covering newMinValue to newMaxValue, at least 2^newShift wide
+	private void rebin(int newMinValue, int newMaxValue, int newShift){
+		while( (newMaxValue >> newShift) - (newMinValue >> newShift) >= BINS ){
+			newShift++;
+		}
+		int firstBin = minValue >> shift;
+		int bins = (maxValue >> shift) - firstBin + 1;
+		long[] newCounts = new long[BINS];
+		for(int i = 0; i < bins; i++){
+			if(counts[i] != 0){
+				int lowValue = (firstBin + i) << shift;
+				newCounts[(lowValue >> newShift) - (newMinValue >> newShift)] += counts[i];
+			}
+		}
+		counts = newCounts;
+		shift = newShift;
+		minValue = newMinValue;
+		maxValue = newMaxValue;
+	}
+	
+	
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(shift);
+		out.writeInt(minValue);
+		out.writeInt(maxValue);
+		out.writeLong(total);
+		for(long count : counts){
+			out.writeLong(count);
+		}
+	}
+	
+	
+	public static QuantileSketch read(DataInputStream in) throws IOException {
+		QuantileSketch sketch = new QuantileSketch();
+		sketch.shift = in.readInt();
+		sketch.minValue = in.readInt();
+		sketch.maxValue = in.readInt();
+		sketch.total = in.readLong();
+		for(int i = 0; i < BINS; i++){
+			sketch.counts[i] = in.readLong();
+		}
+		return sketch;
+	}
+
+}
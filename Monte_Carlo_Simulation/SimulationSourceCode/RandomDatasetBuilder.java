@@ -0,0 +1,79 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * Builds a random dataset in memory from the rows of a simulation, as RandomDatasetWriter writes 
+ * them to a file, giving the Dataset that reading that file would give (but keeping the feature ids
+ * of the original dataset).  Used as the control of the paired mode of Simulation.
+ * @author wingetts
+ *
+ */
+
+public class RandomDatasetBuilder {
+
+	private final Dataset dataset = new Dataset();
+	private final PairCounter interactionsCounter = new PairCounter();
+	private final Complex currentComplex;
+	private int currentComplexNumber = -1;
+	
+	
+	public RandomDatasetBuilder(FeatureDictionary dictionary, int maxValency){
+		dataset.dictionary = dictionary;
+		currentComplex = new Complex(maxValency, dictionary.size());
+	}
+	
+	
+	//Rows of a complex are added together, in complex order
+	public void addRow(int complexNumber, int feature){
+		if(complexNumber != currentComplexNumber){
+			finishComplex();
+			currentComplexNumber = complexNumber;
+		}
+		dataset.features.addElement(feature);
+		currentComplex.addFeature(feature);
+	}
+	
+	
+	public Dataset finishDataset(){
+		finishComplex();
+		dataset.observedInteractions = new PairIndex(interactionsCounter);
+		dataset.features.activateElements();
+		dataset.valencies.activateElements();
+		return dataset;
+	}
+	
+	
+	private void finishComplex(){
+		if(currentComplex.getValency() == 0){
+			return;
+		}
+		dataset.valencies.addElement(currentComplex.getValency());
+		dataset.numberComplexes++;
+		currentComplex.interactionsCounterIncrementer(interactionsCounter);
+		currentComplex.empty();
+	}
+
+}
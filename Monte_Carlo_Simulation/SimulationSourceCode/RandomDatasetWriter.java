@@ -0,0 +1,194 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+
+
+/**
+ * Writes the random datasets (one file per simulation) on a background thread, so that compressing
+ * a dataset overlaps with simulating the next.  Rows are passed as (complex number, feature id) in 
+ * fixed-size blocks, and only a few blocks exist: once they are all waiting to be written, the 
+ * simulation waits for the writer.  Memory use therefore does not depend on the size of the dataset.
+ * @author wingetts
+ *
+ */
+
+public class RandomDatasetWriter implements Runnable {
+
+	private static final int BLOCK_ROWS = 1 << 16;
+	private static final int NUMBER_BLOCKS = 4;
+	private static final byte[] HEADER = "Read_ID\tBarcode_ID\tChromosome\tFeature_Start\tFeature_End\tFeature_Strand\tFeature_ID\tFeature_Name\n".getBytes();
+	private static final byte[] EMPTY_COLUMNS = "\t0\t0\t0\t0\t0\t".getBytes();    //Allocate zeros to data that is not necessary nor available
+	
+	private final String inputFilename;
+	private final String randomString;
+	private final byte[][] featureNames;    //Indexed by feature id
+	private final BlockingQueue<Block> freeBlocks = new ArrayBlockingQueue<Block>(NUMBER_BLOCKS);
+	private final BlockingQueue<Block> filledBlocks = new ArrayBlockingQueue<Block>(NUMBER_BLOCKS);
+	private final Thread writerThread;
+	private Block currentBlock;    //Being filled by the simulation
+	
+	
+	//Rows for one simulation's dataset; the last block of a dataset has last set
+	private static class Block {
+		int[] complexes = new int[BLOCK_ROWS];
+		int[] features = new int[BLOCK_ROWS];
+		int size = 0;
+		int simNumber;
+		boolean last;
+	}
+	
+	
+	public RandomDatasetWriter(String inputFilename, String randomString, FeatureDictionary dictionary){
+		this.inputFilename = inputFilename;
+		this.randomString = randomString;
+		featureNames = new byte[dictionary.size()][];
+		for(int id = 0; id < dictionary.size(); id++){
+			featureNames[id] = dictionary.getName(id).getBytes();
+		}
+		for(int i = 0; i < NUMBER_BLOCKS; i++){
+			freeBlocks.add(new Block());
+		}
+		writerThread = new Thread(this, "random-dataset-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+	
+	
+	public void startDataset(int simNumber){
+		currentBlock = takeBlock(freeBlocks);
+		currentBlock.simNumber = simNumber;
+	}
+	
+	
+	public void addRow(int complexNumber, int feature){
+		if(currentBlock.size == BLOCK_ROWS){
+			int simNumber = currentBlock.simNumber;
+			putBlock(filledBlocks, currentBlock);
+			startDataset(simNumber);
+		}
+		currentBlock.complexes[currentBlock.size] = complexNumber;
+		currentBlock.features[currentBlock.size] = feature;
+		currentBlock.size++;
+	}
+	
+	
+	public void finishDataset(){
+		currentBlock.last = true;
+		putBlock(filledBlocks, currentBlock);
+		currentBlock = null;
+	}
+	
+	
+	//Waits until every finished dataset has been written and its file closed
+	public void awaitWritten(){
+		Block[] blocks = new Block[NUMBER_BLOCKS];
+		for(int i = 0; i < NUMBER_BLOCKS; i++){    //The writer only returns a block once it has finished with it
+			blocks[i] = takeBlock(freeBlocks);
+		}
+		for(Block block : blocks){
+			putBlock(freeBlocks, block);
+		}
+	}
+	
+	
+	public void run(){
+		byte[] buffer = new byte[1 << 20];
+		int bufferSize = 0;
+		GZIPOutputStream out = null;
+		int readId = 0;
+		try {
+			while(true){
+				Block block = filledBlocks.take();
+				if(out == null){    //First block of a dataset
+					String randomDatasetFileName = inputFilename + ".RandomDataset." + block.simNumber + "." + randomString + ".txt.gz";
+					System.out.println("Writing random dataset " + block.simNumber);
+					out = new GZIPOutputStream(new FileOutputStream(randomDatasetFileName), 1 << 16);
+					out.write(HEADER);
+					readId = 0;
+				}
+				
+				for(int i = 0; i < block.size; i++){
+					byte[] featureName = featureNames[block.features[i]];
+					if(bufferSize + 40 + featureName.length > buffer.length){    //Room for two numbers, the zeros and the name
+						out.write(buffer, 0, bufferSize);
+						bufferSize = 0;
+					}
+					readId++;
+					bufferSize = Utilities.writeInt(buffer, bufferSize, readId);
+					buffer[bufferSize++] = '\t';
+					bufferSize = Utilities.writeInt(buffer, bufferSize, block.complexes[i]);
+					System.arraycopy(EMPTY_COLUMNS, 0, buffer, bufferSize, EMPTY_COLUMNS.length);
+					bufferSize += EMPTY_COLUMNS.length;
+					System.arraycopy(featureName, 0, buffer, bufferSize, featureName.length);
+					bufferSize += featureName.length;
+					buffer[bufferSize++] = '\n';
+				}
+				
+				if(block.last){
+					out.write(buffer, 0, bufferSize);
+					bufferSize = 0;
+					out.close();
+					out = null;
+				}
+				block.size = 0;
+				block.last = false;
+				freeBlocks.put(block);
+			}
+		} catch (IOException | InterruptedException ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
+	
+	private static Block takeBlock(BlockingQueue<Block> queue){
+		Block block = null;
+		try {
+			block = queue.take();
+		} catch (InterruptedException ie) {
+			ie.printStackTrace();
+			System.exit(1);
+		}
+		return block;
+	}
+	
+	
+	private static void putBlock(BlockingQueue<Block> queue, Block block){
+		try {
+			queue.put(block);
+		} catch (InterruptedException ie) {
+			ie.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
+}
@@ -0,0 +1,85 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.util.random.RandomGenerator;
+import java.util.random.RandomGeneratorFactory;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+
+
+/**
+ * Provides the random number streams for the simulations.  Every simulation has its own stream,
+ * determined only by the seed and the simulation's number: the stream of simulation k starts k - 1 
+ * jumps (2^128 draws for Xoshiro256PlusPlus) after the seed's starting state, so streams never overlap.  
+ * The same simulations therefore give the same results however they are shared between threads or 
+ * jobs.
+ * 
+ * Any leapable algorithm of java.util.random may be used.
+ * @author wingetts
+ *
+ */
+
+public class RandomStreams {
+
+	public static final String DEFAULT_ALGORITHM = "Xoshiro256PlusPlus";
+	
+	private final RandomGenerator.LeapableGenerator seedGenerator;
+	final String algorithm;
+	final long seed;
+
+	
+	//Throws IllegalArgumentException if the algorithm is not available, or cannot jump and leap
+	public RandomStreams(String algorithm, long seed){
+		RandomGeneratorFactory<RandomGenerator> factory = RandomGeneratorFactory.of(algorithm);
+		if(!factory.isLeapable()){
+			throw new IllegalArgumentException("Random number generator " + algorithm + " does not support jumping ahead");
+		}
+		this.algorithm = algorithm;
+		this.seed = seed;
+		seedGenerator = (RandomGenerator.LeapableGenerator)factory.create(seed);
+	}
+	
+	
+	//Returns a generator at the start of simulation simNumber's stream.  Calling jump() on it then moves 
+	//it on to the start of the next simulation's stream.
+	public RandomGenerator.JumpableGenerator getStream(int simNumber){
+		RandomGenerator.JumpableGenerator stream = seedGenerator.copy();
+		for(int i = 1; i < simNumber; i++){
+			stream.jump();
+		}
+		return stream;
+	}
+	
+	
+	//Returns the generator for creating the random control dataset of the paired mode.  It is two leaps beyond 
+	//the seed's starting state, so is clear of every simulation's stream, and does not depend on the simulation numbers (so jobs running different simulations share the control).
+	public RandomGenerator getControlStream(){
+		RandomGenerator.LeapableGenerator stream = seedGenerator.copy();
+		stream.leap();
+		stream.leap();
+		return stream;
+	}
+	
+}
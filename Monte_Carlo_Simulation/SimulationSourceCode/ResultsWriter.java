@@ -0,0 +1,273 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+
+
+/**
+ * Writes a gzip-compressed text results file in the BGZF format: the text is cut into blocks of
+ * at most 65280 bytes, each compressed as a separate gzip member (which records its own compressed
+ * size), followed by an empty end-of-file member.  Any gzip reader (e.g. zcat) reads the file 
+ * as normal, while the blocks are compressed in parallel when more than one thread is available.
+ * 
+ * Numbers are formatted straight into a re-used block buffer; whole numbers avoid creating a
+ * String altogether.  An error writing the file is held until close(), which throws it.
+ * @author wingetts
+ *
+ */
+
+public class ResultsWriter {
+
+	private static final int BLOCK_SIZE = 0xff00;    //As bgzip, so that even incompressible data fits in a 64KB member
+	private static final int LONGEST_NUMBER = 32;    //Longest text written by writeDouble / writeFloat / writeLong
+	private static final byte[] EOF_BLOCK = {31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+	
+	private final OutputStream out;
+	private final int compressionLevel;
+	private final ExecutorService compressors;    //Null when compressing on the calling thread
+	private final ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<Future<byte[]>>();    //In file order
+	private final int maxPendingBlocks;
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int blockSize = 0;
+	private IOException error = null;    //The first error writing the file: later blocks are dropped, and close() throws it
+	
+	
+	//compressionLevel as java.util.zip.Deflater (0-9, or -1 for the default)
+	public ResultsWriter(String filename, int compressionLevel, int threads) throws IOException {
+		out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+		this.compressionLevel = compressionLevel;
+		compressors = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+		maxPendingBlocks = threads * 4;
+	}
+	
+	
+	public void write(byte[] bytes){
+		write(bytes, 0, bytes.length);
+	}
+	
+	
+	public void write(byte[] bytes, int offset, int length){
+		int written = 0;
+		while(written < length){
+			if(blockSize == BLOCK_SIZE){
+				endBlock();
+			}
+			int copyLength = Math.min(length - written, BLOCK_SIZE - blockSize);
+			System.arraycopy(bytes, offset + written, block, blockSize, copyLength);
+			blockSize += copyLength;
+			written += copyLength;
+		}
+	}
+	
+	
+	public void write(String text){    //Written as UTF-8, copying ASCII characters directly
+		int written = 0;
+		while(written < text.length()){
+			if(blockSize == BLOCK_SIZE){
+				endBlock();
+			}
+			int length = Math.min(text.length() - written, BLOCK_SIZE - blockSize);
+			for(int i = 0; i < length; i++){
+				char character = text.charAt(written + i);
+				if(character >= 0x80){    //Encode the rest of the text, from the first non-ASCII character
+					blockSize += i;
+					write(text.substring(written + i).getBytes(StandardCharsets.UTF_8));
+					return;
+				}
+				block[blockSize + i] = (byte)character;
+			}
+			blockSize += length;
+			written += length;
+		}
+	}
+	
+	
+	public void write(char character){
+		if(character >= 0x80){
+			write(String.valueOf(character));
+			return;
+		}
+		if(blockSize == BLOCK_SIZE){
+			endBlock();
+		}
+		block[blockSize++] = (byte)character;
+	}
+	
+	
+	public void writeLong(long value){
+		makeRoom();
+		if(value < 0){
+			block[blockSize++] = '-';
+			value = -value;    //Long.MIN_VALUE is not expected
+		}
+		int digits = 1;
+		for(long remaining = value / 10; remaining > 0; remaining /= 10){
+			digits++;
+		}
+		for(int i = blockSize + digits - 1; i >= blockSize; i--){
+			block[i] = (byte)('0' + (value % 10));
+			value /= 10;
+		}
+		blockSize += digits;
+	}
+	
+	
+	//As Double.toString, but whole numbers (the common case for counts) are written without creating a String
+	public void writeDouble(double value){
+		if( (value == Math.rint(value)) && (Math.abs(value) < 1e7) && !( (value == 0) && (1 / value < 0) ) ){
+			writeLong((long)value);
+			write(".0");
+		} else {
+			write(Double.toString(value));
+		}
+	}
+	
+	
+	//As Float.toString, but whole numbers are written without creating a String
+	public void writeFloat(float value){
+		if( (value == Math.rint(value)) && (Math.abs(value) < 1e7) && !( (value == 0) && (1 / value < 0) ) ){
+			writeLong((long)value);
+			write(".0");
+		} else {
+			write(Float.toString(value));
+		}
+	}
+	
+	
+	public void close() throws IOException {
+		if(blockSize > 0){
+			endBlock();
+		}
+		while(!pendingBlocks.isEmpty()){
+			writeNextBlock();
+		}
+		if(compressors != null){
+			compressors.shutdown();
+		}
+		try {
+			if(error == null){
+				out.write(EOF_BLOCK);
+			}
+		} finally {
+			out.close();
+		}
+		if(error != null){
+			throw error;
+		}
+	}
+	
+	
+	private void makeRoom(){
+		if(blockSize + LONGEST_NUMBER > BLOCK_SIZE){
+			endBlock();
+		}
+	}
+	
+	
+	//Compresses the current block (on another thread if possible) and starts a new one
+	private void endBlock(){
+		byte[] fullBlock = block;
+		int fullBlockSize = blockSize;
+		if(error != null){
+			blockSize = 0;
+			return;
+		}
+		try {
+			if(compressors == null){
+				out.write(compressBlock(fullBlock, fullBlockSize, compressionLevel));
+				blockSize = 0;    //The block can be re-used straight away
+				return;
+			}
+			
+			if(pendingBlocks.size() == maxPendingBlocks){
+				writeNextBlock();
+			}
+			pendingBlocks.add(compressors.submit(() -> compressBlock(fullBlock, fullBlockSize, compressionLevel)));
+		} catch (IOException ioe) {
+			error = ioe;
+		}
+		block = new byte[BLOCK_SIZE];
+		blockSize = 0;
+	}
+	
+	
+	private void writeNextBlock(){
+		try {
+			byte[] member = pendingBlocks.remove().get();
+			if(error == null){
+				out.write(member);
+			}
+		} catch (IOException ioe) {
+			error = ioe;
+		} catch (InterruptedException | ExecutionException ex) {
+			error = new IOException(ex);
+		}
+	}
+	
+	
+	//Returns the block as a BGZF gzip member: a gzip header with a "BC" extra field giving the member size,
+	//the deflated data, then the CRC32 and uncompressed size of the data
+	private static byte[] compressBlock(byte[] data, int length, int compressionLevel){
+		Deflater deflater = new Deflater(compressionLevel, true);
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		byte[] member = new byte[18 + length + (length >> 3) + 64 + 8];    //Enough for stored blocks if the data does not compress
+		int memberSize = 18;
+		while(!deflater.finished()){
+			if(memberSize == member.length - 8){
+				member = Arrays.copyOf(member, member.length * 2);
+			}
+			memberSize += deflater.deflate(member, memberSize, member.length - 8 - memberSize);
+		}
+		deflater.end();
+		
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		ByteBuffer buffer = ByteBuffer.wrap(member).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(new byte[] {31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0});
+		buffer.putShort((short)(memberSize + 8 - 1));    //Total member size - 1
+		buffer.position(memberSize);
+		buffer.putInt((int)crc.getValue());
+		buffer.putInt(length);
+		return Arrays.copyOf(member, memberSize + 8);
+	}
+	
+}
@@ -0,0 +1,353 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Locale;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * Instruments a simulation run: times its phases (reading the input, building the indexes, the 
+ * simulations and writing the output), records for each simulation its time, the feature draws it 
+ * made and how many of them were rejected into the not added pool, and tracks the heap and garbage 
+ * collection.  Progress (with an estimated time to completion) is printed as each simulation ends, 
+ * a summary at the end of the run, and, with --metrics, everything is written to a JSON (or, if the 
+ * filename ends .csv, CSV) file.  The phases and simulations are also recorded as JFR events 
+ * (uk.ac.babraham.Phase and uk.ac.babraham.Simulation) when the JVM is started with flight recording
+ * on (-XX:StartFlightRecording); otherwise the event classes are never loaded, as that alone takes a
+ * noticeable fraction of a second.
+ * 
+ * Peak heap per phase is the sum of the heap pools' peaks over the phase, so is an upper bound.
+ * @author wingetts
+ *
+ */
+
+public class RunMetrics {
+
+	private final long runStart = System.nanoTime();
+	private final boolean recording = FlightRecorder.isInitialized();    //Whether to create JFR events
+	
+	//Completed phases (the current phase is added when it ends)
+	private final ArrayList<String> phaseNames = new ArrayList<String>();
+	private final ArrayList<long[]> phaseValues = new ArrayList<long[]>();    //Nanoseconds, peak heap bytes, collections, collection milliseconds
+	private String currentPhase = null;
+	private long phaseStart;
+	private long phaseCollections;
+	private long phaseCollectionMillis;
+	private PhaseEvent phaseEvent;
+	
+	//Simulations
+	private final ArrayList<long[]> simulations = new ArrayList<long[]>();    //Label (index), simulation number, nanoseconds, complexes, feature draws, rejected draws, final and peak pool size
+	private final ArrayList<String> simulationLabels = new ArrayList<String>();    //e.g. "Simulation"
+	private int simulationsExpected;
+	private long totalComplexes = 0;
+	private long simulationsStart;
+	private long totalFeatureDraws = 0;
+	private long totalRejectedDraws = 0;
+	private int largestPoolSize = 0;    //Largest not added pool of any simulation
+	private long peakHeap = 0;
+	
+	
+	//Ends the current phase (if any) and starts the next
+	public synchronized void startPhase(String name){
+		endPhase();
+		currentPhase = name;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+			if(pool.getType() == MemoryType.HEAP){
+				pool.resetPeakUsage();
+			}
+		}
+		phaseCollections = getCollections();
+		phaseCollectionMillis = getCollectionMillis();
+		if(recording){
+			phaseEvent = new PhaseEvent();
+			phaseEvent.phase = name;
+			phaseEvent.begin();
+		}
+		phaseStart = System.nanoTime();
+	}
+	
+	
+	public synchronized void endPhase(){
+		if(currentPhase == null){
+			return;
+		}
+		long phaseNanos = System.nanoTime() - phaseStart;
+		long phasePeakHeap = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+			if( (pool.getType() == MemoryType.HEAP) && (pool.getPeakUsage() != null) ){
+				phasePeakHeap += pool.getPeakUsage().getUsed();
+			}
+		}
+		peakHeap = Math.max(peakHeap, phasePeakHeap);
+		phaseNames.add(currentPhase);
+		phaseValues.add(new long[] {phaseNanos, phasePeakHeap, getCollections() - phaseCollections, getCollectionMillis() - phaseCollectionMillis});
+		if(recording){
+			phaseEvent.peakHeap = phasePeakHeap;
+			phaseEvent.commit();
+		}
+		currentPhase = null;
+	}
+	
+	
+	//Called as the simulations start (simulationsExpected may be fewer than requested when resuming)
+	public synchronized void startSimulations(int simulationsExpected){
+		startPhase("Simulations");
+		this.simulationsExpected = simulationsExpected;
+		simulationsStart = System.nanoTime();
+	}
+	
+	
+	//Returns a JFR event for a simulation about to start (null if not recording), to be passed back to endSimulation
+	public SimulationEvent startSimulation(int simNumber){
+		if(!recording){
+			return null;
+		}
+		SimulationEvent event = new SimulationEvent();
+		event.simulation = simNumber;
+		event.begin();
+		return event;
+	}
+	
+	
+	//Records a finished simulation (called by the worker threads) and prints the progress
+	public void endSimulation(String label, int simNumber, SimulationEvent event, long nanos, long complexes, long featureDraws, long rejectedDraws, 
+			int poolSize, int peakPoolSize){
+		if(event != null){
+			event.complexes = complexes;
+			event.featureDraws = featureDraws;
+			event.rejectedDraws = rejectedDraws;
+			event.peakPoolSize = peakPoolSize;
+			event.commit();
+		}
+		
+		int completed;
+		long elapsed;
+		synchronized(this){
+			if(!simulationLabels.contains(label)){
+				simulationLabels.add(label);
+			}
+			simulations.add(new long[] {simulationLabels.indexOf(label), simNumber, nanos, complexes, featureDraws, rejectedDraws, poolSize, peakPoolSize});
+			totalComplexes += complexes;
+			totalFeatureDraws += featureDraws;
+			totalRejectedDraws += rejectedDraws;
+			largestPoolSize = Math.max(largestPoolSize, peakPoolSize);
+			completed = simulations.size();
+			elapsed = System.nanoTime() - simulationsStart;
+		}
+		long remainingNanos = (long)( (double)elapsed / completed * Math.max(simulationsExpected - completed, 0) );
+		System.out.println(label + " " + simNumber + " took " + formatSeconds(nanos) + " s (" 
+				+ Math.round(complexes / (nanos / 1e9)) + " complexes/s, " 
+				+ formatPercentage(rejectedDraws, featureDraws) + "% of feature draws rejected, pool peaked at " + peakPoolSize + "), ETA " 
+				+ formatDuration(remainingNanos));
+	}
+	
+	
+	//Ends the last phase, prints a summary and writes the metrics file (if filename is not null)
+	public synchronized void finish(String filename, String inputFilename, int simsCompleted, int threads, long seed){
+		endPhase();
+		simulations.sort((a, b) -> (a[0] != b[0]) ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));    //Into simulation order, rather than the order they finished
+		
+		System.out.println("Run metrics:");
+		for(int i = 0; i < phaseNames.size(); i++){
+			long[] values = phaseValues.get(i);
+			System.out.println("\t" + phaseNames.get(i) + ": " + formatSeconds(values[0]) + " s, peak heap " + (values[1] >> 20) + " MB, " 
+					+ values[2] + " garbage collections (" + formatSeconds(values[3] * 1_000_000) + " s)");
+		}
+		if(!simulations.isEmpty()){
+			System.out.println("\t" + getComplexesPerSecond() + " complexes/s, " + formatPercentage(totalRejectedDraws, totalFeatureDraws) + "% of feature draws rejected, " 
+					+ "largest not added pool " + largestPoolSize);
+		}
+		System.out.println("\tPeak heap " + (peakHeap >> 20) + " MB of " + (Runtime.getRuntime().maxMemory() >> 20) + " MB maximum");
+		
+		if(filename == null){
+			return;
+		}
+		try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(filename)))){
+			if(filename.toLowerCase().endsWith(".csv")){
+				writeCsv(writer, inputFilename, simsCompleted, threads, seed);
+			} else {
+				writeJson(writer, inputFilename, simsCompleted, threads, seed);
+			}
+			if(writer.checkError()){
+				throw new IOException("error writing " + filename);
+			}
+			System.out.println("Written metrics to " + filename);
+		} catch (IOException ioe) {
+			System.err.println("Could not write metrics file " + filename + " (" + ioe.getMessage() + ")");
+		}
+	}
+	
+	
+	private void writeJson(PrintWriter writer, String inputFilename, int simsCompleted, int threads, long seed){
+		writer.println("{");
+		writer.println("  \"input_file\": \"" + inputFilename.replace("\\", "\\\\").replace("\"", "\\\"") + "\",");
+		writer.println("  \"input_bytes\": " + new File(inputFilename).length() + ",");
+		writer.println("  \"simulations\": " + simsCompleted + ",");
+		writer.println("  \"threads\": " + threads + ",");
+		writer.println("  \"available_processors\": " + Runtime.getRuntime().availableProcessors() + ",");
+		writer.println("  \"seed\": " + seed + ",");
+		writer.println("  \"wall_seconds\": " + formatSeconds(System.nanoTime() - runStart) + ",");
+		writer.println("  \"complexes\": " + totalComplexes + ",");
+		writer.println("  \"complexes_per_second\": " + getComplexesPerSecond() + ",");
+		writer.println("  \"feature_draws\": " + totalFeatureDraws + ",");
+		writer.println("  \"rejected_draws\": " + totalRejectedDraws + ",");
+		writer.println("  \"peak_pool_size\": " + largestPoolSize + ",");
+		writer.println("  \"peak_heap_bytes\": " + peakHeap + ",");
+		writer.println("  \"max_heap_bytes\": " + Runtime.getRuntime().maxMemory() + ",");
+		writer.println("  \"garbage_collections\": " + getCollections() + ",");
+		writer.println("  \"garbage_collection_seconds\": " + formatSeconds(getCollectionMillis() * 1_000_000) + ",");
+		writer.println("  \"phases\": [");
+		for(int i = 0; i < phaseNames.size(); i++){
+			long[] values = phaseValues.get(i);
+			writer.println("    {\"name\": \"" + phaseNames.get(i) + "\", \"seconds\": " + formatSeconds(values[0]) + ", \"peak_heap_bytes\": " + values[1] 
+					+ ", \"garbage_collections\": " + values[2] + ", \"garbage_collection_seconds\": " + formatSeconds(values[3] * 1_000_000) 
+					+ "}" + ( (i + 1 < phaseNames.size()) ? "," : "") );
+		}
+		writer.println("  ],");
+		writer.println("  \"simulation_results\": [");
+		for(int i = 0; i < simulations.size(); i++){
+			long[] values = simulations.get(i);
+			writer.println("    {\"label\": \"" + simulationLabels.get((int)values[0]) + "\", \"simulation\": " + values[1] + ", \"seconds\": " + formatSeconds(values[2]) 
+					+ ", \"complexes\": " + values[3] + ", \"feature_draws\": " + values[4] + ", \"rejected_draws\": " + values[5] + ", \"pool_size\": " + values[6] + ", \"peak_pool_size\": " + values[7] + "}" 
+					+ ( (i + 1 < simulations.size()) ? "," : "") );
+		}
+		writer.println("  ]");
+		writer.println("}");
+	}
+	
+	
+	//One row per phase and per simulation, after the run totals
+	private void writeCsv(PrintWriter writer, String inputFilename, int simsCompleted, int threads, long seed){
+		writer.println("record,name,seconds,peak_heap_bytes,garbage_collections,garbage_collection_seconds,complexes,feature_draws,rejected_draws,pool_size,peak_pool_size");
+		writer.println("run," + inputFilename.replace(",", "_") + "," + formatSeconds(System.nanoTime() - runStart) + "," + peakHeap + "," + getCollections() + "," 
+				+ formatSeconds(getCollectionMillis() * 1_000_000) + "," + totalComplexes + "," + totalFeatureDraws + "," + totalRejectedDraws + ",," + largestPoolSize);
+		for(int i = 0; i < phaseNames.size(); i++){
+			long[] values = phaseValues.get(i);
+			writer.println("phase," + phaseNames.get(i) + "," + formatSeconds(values[0]) + "," + values[1] + "," + values[2] + "," + formatSeconds(values[3] * 1_000_000) + ",,,,,");
+		}
+		for(long[] values : simulations){
+			writer.println("simulation," + simulationLabels.get((int)values[0]) + " " + values[1] + "," + formatSeconds(values[2]) + ",,,," + values[3] + "," + values[4] + "," + values[5] + "," + values[6] + "," + values[7]);
+		}
+	}
+	
+	
+	//Complexes simulated per second of the simulations phase, over all threads
+	private long getComplexesPerSecond(){
+		long simulationNanos = 0;
+		for(int i = 0; i < phaseNames.size(); i++){
+			if(phaseNames.get(i).equals("Simulations")){
+				simulationNanos += phaseValues.get(i)[0];
+			}
+		}
+		if(simulationNanos == 0){
+			return 0;
+		}
+		return Math.round(totalComplexes / (simulationNanos / 1e9));
+	}
+	
+	
+	private static long getCollections(){
+		long collections = 0;
+		for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()){
+			collections += Math.max(collector.getCollectionCount(), 0);
+		}
+		return collections;
+	}
+	
+	
+	private static long getCollectionMillis(){
+		long millis = 0;
+		for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()){
+			millis += Math.max(collector.getCollectionTime(), 0);
+		}
+		return millis;
+	}
+	
+	
+	private static String formatSeconds(long nanos){
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e9);
+	}
+	
+	
+	private static String formatPercentage(long part, long whole){
+		return String.format(Locale.ROOT, "%.2f", (whole == 0) ? 0.0 : 100.0 * part / whole);
+	}
+	
+	
+	private static String formatDuration(long nanos){
+		long seconds = nanos / 1_000_000_000L;
+		return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+	}
+	
+	
+	@Name("uk.ac.babraham.Phase")
+	@Label("Simulation Run Phase")
+	@Category("CloseCall")
+	static class PhaseEvent extends Event {
+		@Label("Phase")
+		String phase;
+		
+		@Label("Peak Heap")
+		@DataAmount
+		long peakHeap;
+	}
+	
+	
+	@Name("uk.ac.babraham.Simulation")
+	@Label("Simulation")
+	@Category("CloseCall")
+	static class SimulationEvent extends Event {
+		@Label("Simulation Number")
+		int simulation;
+		
+		@Label("Complexes")
+		long complexes;
+		
+		@Label("Feature Draws")
+		long featureDraws;
+		
+		@Label("Rejected Draws")
+		long rejectedDraws;
+		
+		@Label("Peak Pool Size")
+		int peakPoolSize;
+	}
+
+}
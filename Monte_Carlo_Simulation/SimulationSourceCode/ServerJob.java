@@ -0,0 +1,249 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * A simulation submitted to the simulation server.  The job is described by the arguments that 
+ * would be given to Simulation ([Input file] [Number of simulations] [QC] and the options below), and
+ * is run on the server's shared worker pool against the cached dataset, giving the same results as 
+ * Simulation would with the same seed.
+ * 
+ * Progress is published after each round of simulations, and waiters are notified.
+ * @author wingetts
+ *
+ */
+
+public class ServerJob implements Runnable {
+	
+	static final String[] OPTIONS = {"--seed", "--first", "--rng", "--sampling", "--stop-after", "--moments"};
+	
+	final int id;
+	final String arguments;
+	String inputFilename;
+	int simsToRun = 3;    //Default number of simulations, as for Simulation
+	boolean qc = false;
+	Long seed = null;    //Chosen at random if not specified
+	int firstRunSimNumber = 1;
+	String rngAlgorithm = RandomStreams.DEFAULT_ALGORITHM;
+	boolean exactSampling = false;
+	int stopAfter = 0;
+	boolean moments = false;
+	
+	private final DatasetCache cache;
+	private final ExecutorService workerPool;
+	private final int threads;
+	
+	private String state = "queued";    //Then running, followed by finished or failed
+	private int simsCompleted = 0;
+	private String resultsFilename = null;
+	private String error = null;
+	
+	
+	//Throws IllegalArgumentException if the arguments are not valid
+	public ServerJob(int id, String arguments, DatasetCache cache, ExecutorService workerPool, int threads){
+		this.id = id;
+		this.arguments = arguments.trim();
+		this.cache = cache;
+		this.workerPool = workerPool;
+		this.threads = threads;
+		
+		String[] args = this.arguments.isEmpty() ? new String[0] : this.arguments.split("\\s+");
+		ArrayList<String> positionalArgs = new ArrayList<String>();
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("--moments")){
+				moments = true;
+			} else if(args[i].startsWith("--")){
+				if(!Arrays.asList(OPTIONS).contains(args[i])){
+					throw new IllegalArgumentException("Option " + args[i] + " not supported by the server");
+				}
+				if(i + 1 == args.length){
+					throw new IllegalArgumentException("Option " + args[i] + " requires a value");
+				}
+				String option = args[i];
+				String value = args[++i];
+				if(option.equals("--seed")){
+					seed = Long.parseLong(value);
+				} else if(option.equals("--first")){
+					firstRunSimNumber = Integer.parseInt(value);
+					if(firstRunSimNumber < 1){
+						throw new IllegalArgumentException("Option --first needs to be 1 or more");
+					}
+				} else if(option.equals("--rng")){
+					rngAlgorithm = value;
+				} else if(option.equals("--sampling")){
+					if( !value.equals("pool") && !value.equals("exact") ){
+						throw new IllegalArgumentException("Option --sampling needs to be pool or exact");
+					}
+					exactSampling = value.equals("exact");
+				} else {
+					stopAfter = Integer.parseInt(value);
+					if(stopAfter < 1){
+						throw new IllegalArgumentException("Option --stop-after needs to be 1 or more");
+					}
+				}
+			} else {
+				positionalArgs.add(args[i]);
+			}
+		}
+		
+		if(positionalArgs.isEmpty()){
+			throw new IllegalArgumentException("Please specify a file to process");
+		}
+		inputFilename = positionalArgs.get(0);
+		if(!new File(inputFilename).isFile()){
+			throw new IllegalArgumentException("Input file " + inputFilename + " not found");
+		}
+		if(positionalArgs.size() > 1){
+			simsToRun = Integer.parseInt(positionalArgs.get(1));
+			if(simsToRun < 1){
+				throw new IllegalArgumentException("Number of simulations needs to be 1 or more");
+			}
+		}
+		if(positionalArgs.size() > 2){
+			if(!positionalArgs.get(2).toLowerCase().equals("qc")){
+				throw new IllegalArgumentException("Third argument not recognised, should be 'QC' ('random' is not supported by the server)");
+			}
+			qc = true;
+		}
+		if(positionalArgs.size() > 3){
+			throw new IllegalArgumentException("Argument " + positionalArgs.get(3) + " not recognised");
+		}
+		if(seed == null){
+			seed = new Random().nextLong();
+		}
+		new RandomStreams(rngAlgorithm, seed);    //Checks the generator can be used
+	}
+	
+	
+	public void run(){
+		System.out.println("Starting job " + id + ": " + arguments);
+		synchronized(this){
+			state = "running";
+			notifyAll();
+		}
+		try {
+			Dataset dataset = cache.get(inputFilename);
+			
+			int jobThreads = Math.min(threads, simsToRun);
+			RunMetrics metrics = new RunMetrics();
+			metrics.startPhase("Simulate");
+			SimulationRun run = new SimulationRun(inputFilename, "Job " + id + " simulation", dataset, simsToRun, firstRunSimNumber, stopAfter, qc);
+			run.exactSampling = exactSampling;
+			if(moments){
+				run.collectNullStatistics(new ArrayList<String[]>());
+			}
+			RandomStreams streams = new RandomStreams(rngAlgorithm, seed);
+			String randomString = "Job" + id + "." + Utilities.makeRandomString();    //Names this job's files, which are never shared with another job
+			run.startWorkers(jobThreads, streams, false, randomString, metrics);
+			metrics.startSimulations(simsToRun);
+			
+			//Rounds are kept short, so progress is reported often.  Retirement depends on the round size, so it is 
+			//fixed when stopping early.
+			int roundSize = (stopAfter > 0) ? Simulation.ROUND_SIZE : jobThreads * 4;
+			while(!run.isFinished()){
+				for(Future<SimulationWorker> completedWorker : workerPool.invokeAll(run.assignRound(roundSize))){
+					completedWorker.get();    //Re-throws any failure
+				}
+				run.endRound();
+				synchronized(this){
+					simsCompleted = run.simsCompleted;
+					notifyAll();
+				}
+			}
+			run.finish();
+			
+			metrics.startPhase("Write output");
+			FileIO dataIO = new FileIO();
+			dataIO.setOutputOptions(Deflater.DEFAULT_COMPRESSION, jobThreads, "text");
+			dataIO.setExitOnError(false);
+			String filename = run.writeResults(dataIO, false, seed, randomString);
+			metrics.finish(null, inputFilename, run.simsCompleted, jobThreads, seed);
+			synchronized(this){
+				resultsFilename = filename;
+				state = "finished";
+				notifyAll();
+			}
+			System.out.println("Finished job " + id + ", written " + filename);
+		} catch (Exception e) {
+			e.printStackTrace();
+			synchronized(this){
+				error = e.toString();
+				state = "failed";
+				notifyAll();
+			}
+		}
+	}
+	
+	
+	public synchronized boolean isDone(){
+		return state.equals("finished") || state.equals("failed");
+	}
+	
+	
+	public synchronized String getState(){
+		return state;
+	}
+	
+	
+	public synchronized int getSimsCompleted(){
+		return simsCompleted;
+	}
+	
+	
+	public synchronized String getResultsFilename(){
+		return resultsFilename;
+	}
+	
+	
+	public synchronized String getError(){
+		return error;
+	}
+	
+	
+	//Waits until the job's state or number of simulations completed differs from those given
+	public synchronized void awaitChange(String seenState, int seenSimsCompleted) throws InterruptedException {
+		while( state.equals(seenState) && (simsCompleted == seenSimsCompleted) ){
+			wait();
+		}
+	}
+	
+	
+	public synchronized String toJson(){
+		return "{\"id\": " + id + ", \"state\": \"" + state + "\", \"arguments\": \"" + SimulationServer.escape(arguments) 
+				+ "\", \"input_file\": \"" + SimulationServer.escape(inputFilename) + "\", \"simulations\": " + simsToRun 
+				+ ", \"simulations_completed\": " + simsCompleted + ", \"seed\": " + seed 
+				+ ", \"results_file\": " + ( (resultsFilename == null) ? "null" : "\"" + SimulationServer.escape(resultsFilename) + "\"" ) 
+				+ ", \"error\": " + ( (error == null) ? "null" : "\"" + SimulationServer.escape(error) + "\"" ) + "}";
+	}
+
+}
@@ -1,7 +1,17 @@
 package uk.ac.babraham.anacondamontecarlosimulation;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.random.RandomGenerator;
+import java.util.zip.Deflater;
 
 /**
 ###################################################################################
@@ -29,6 +39,8 @@ import java.util.ArrayList;
 
 
 public class Simulation {
+	
+	static final int ROUND_SIZE = 100;    //Simulations between checks for interactions to retire (see --stop-after) or for checkpoints
 
 	public static void main(String[] args) {
 		
@@ -39,26 +51,223 @@ public class Simulation {
 		int simsToRun = 3;    //Default number of simulations
 		Boolean qc = false;
 		Boolean createRandomDataset = false;
+		int threads = 1;    //Default number of worker threads
+		boolean useSnapshot = false;
+		boolean writePartial = false;
+		Long seed = null;    //Chosen at random if not specified
+		int firstRunSimNumber = 1;    //Number of the first simulation, so a run can be split into jobs each running a range
+		String rngAlgorithm = RandomStreams.DEFAULT_ALGORITHM;
+		String checkpointFilename = null;    //Progress is saved to this file if specified
+		int checkpointEvery = 0;    //Save progress every this many simulations...
+		int checkpointMinutes = 0;    //...or minutes
+		boolean resume = false;
+		int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+		String outputFormat = "text";
+		String metricsFilename = null;    //Run metrics are written to this file if specified
+		String controlFilename = null;    //Results of a simulation of a random dataset, for multiple testing correction
+		int window = MultipleTestingCorrection.DEFAULT_WINDOW;
+		boolean paired = false;    //Also simulate a random control dataset, then correct against it
+		String controlDatasetFilename = null;    //The control dataset when paired, otherwise created from the input
+		boolean moments = false;    //Collect the variance of each interaction's simulated counts
+		String quantilesFilename = null;    //Pairs for which to also estimate quantiles of the simulated counts
+		boolean exactSampling = false;    //Draw each complex's features without replacement, rather than using the not added pool
+		int stopAfter = 0;    //Retire an interaction once its simulation score reaches this (0 = run every simulation for every interaction)
+		int numberPartitions = 1;    //Simulate the observed interactions in this many passes, to hold fewer in memory at once
+		int pairMemory = 0;    //If set, count the observed pairs out of core in a buffer of this many MB
+		boolean approximate = false;    //Estimate the null distributions without simulating
+		int approximateCheck = 0;    //If set, also run this many simulations to check the approximation against
+		int approximateSims = 0;    //The approximate scores are for this many simulations (the number requested)
+		
+		ArrayList<String> positionalArgs = new ArrayList<String>();
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("--threads")){
+				if(i + 1 == args.length){
+					System.err.println("Option --threads requires a value");
+					System.exit(1);
+				}
+				threads = Integer.parseInt(args[++i]);
+				if(threads < 1){
+					System.err.println("Option --threads needs to be 1 or more");
+					System.exit(1);
+				}
+			} else if(args[i].equals("--snapshot")){
+				useSnapshot = true;
+			} else if(args[i].equals("--checkpoint") || args[i].equals("--checkpoint-every") || args[i].equals("--checkpoint-minutes")){
+				if(i + 1 == args.length){
+					System.err.println("Option " + args[i] + " requires a value");
+					System.exit(1);
+				}
+				String option = args[i];
+				String value = args[++i];
+				if(option.equals("--checkpoint")){
+					checkpointFilename = value;
+				} else if(option.equals("--checkpoint-every")){
+					checkpointEvery = Integer.parseInt(value);
+				} else {
+					checkpointMinutes = Integer.parseInt(value);
+				}
+				if( !option.equals("--checkpoint") && (Integer.parseInt(value) < 1) ){
+					System.err.println("Option " + option + " needs to be 1 or more");
+					System.exit(1);
+				}
+			} else if(args[i].equals("--paired")){
+				paired = true;
+			} else if(args[i].equals("--control-dataset")){
+				if(i + 1 == args.length){
+					System.err.println("Option --control-dataset requires a value");
+					System.exit(1);
+				}
+				controlDatasetFilename = args[++i];
+				paired = true;
+			} else if(args[i].equals("--control") || args[i].equals("--window")){
+				if(i + 1 == args.length){
+					System.err.println("Option " + args[i] + " requires a value");
+					System.exit(1);
+				}
+				if(args[i].equals("--control")){
+					controlFilename = args[++i];
+				} else {
+					window = Math.abs(Integer.parseInt(args[++i]));
+					if(window == 0){
+						System.err.println("Option --window may not be zero");
+						System.exit(1);
+					}
+				}
+			} else if(args[i].equals("--sampling")){
+				if(i + 1 == args.length){
+					System.err.println("Option --sampling requires a value");
+					System.exit(1);
+				}
+				String sampling = args[++i];
+				if( !sampling.equals("pool") && !sampling.equals("exact") ){
+					System.err.println("Option --sampling needs to be pool or exact");
+					System.exit(1);
+				}
+				exactSampling = sampling.equals("exact");
+			} else if(args[i].equals("--partitions")){
+				if(i + 1 == args.length){
+					System.err.println("Option --partitions requires a value");
+					System.exit(1);
+				}
+				numberPartitions = Integer.parseInt(args[++i]);
+				if(numberPartitions < 1){
+					System.err.println("Option --partitions needs to be 1 or more");
+					System.exit(1);
+				}
+			} else if(args[i].equals("--pair-memory")){
+				if(i + 1 == args.length){
+					System.err.println("Option --pair-memory requires a value");
+					System.exit(1);
+				}
+				pairMemory = Integer.parseInt(args[++i]);
+				if(pairMemory < 1){
+					System.err.println("Option --pair-memory needs to be 1 or more");
+					System.exit(1);
+				}
+			} else if(args[i].equals("--approximate")){
+				approximate = true;
+			} else if(args[i].equals("--approximate-check")){
+				if(i + 1 == args.length){
+					System.err.println("Option --approximate-check requires a value");
+					System.exit(1);
+				}
+				approximateCheck = Integer.parseInt(args[++i]);
+				if(approximateCheck < 1){
+					System.err.println("Option --approximate-check needs to be 1 or more");
+					System.exit(1);
+				}
+				approximate = true;
+			} else if(args[i].equals("--moments")){
+				moments = true;
+			} else if(args[i].equals("--quantiles")){
+				if(i + 1 == args.length){
+					System.err.println("Option --quantiles requires a value");
+					System.exit(1);
+				}
+				quantilesFilename = args[++i];
+				moments = true;
+			} else if(args[i].equals("--metrics")){
+				if(i + 1 == args.length){
+					System.err.println("Option --metrics requires a value");
+					System.exit(1);
+				}
+				metricsFilename = args[++i];
+			} else if(args[i].equals("--compression") || args[i].equals("--output-format")){
+				if(i + 1 == args.length){
+					System.err.println("Option " + args[i] + " requires a value");
+					System.exit(1);
+				}
+				String option = args[i];
+				String value = args[++i];
+				if(option.equals("--compression")){
+					compressionLevel = Integer.parseInt(value);
+					if( (compressionLevel < 0) || (compressionLevel > 9) ){
+						System.err.println("Option --compression needs to be between 0 and 9");
+						System.exit(1);
+					}
+				} else {
+					outputFormat = value.toLowerCase();
+					if( !outputFormat.equals("text") && !outputFormat.equals("columnar") && !outputFormat.equals("both") ){
+						System.err.println("Option --output-format should be 'text', 'columnar' or 'both'");
+						System.exit(1);
+					}
+				}
+			} else if(args[i].equals("--resume")){
+				resume = true;
+			} else if(args[i].equals("--seed") || args[i].equals("--first") || args[i].equals("--rng")){
+				if(i + 1 == args.length){
+					System.err.println("Option " + args[i] + " requires a value");
+					System.exit(1);
+				}
+				String option = args[i];
+				String value = args[++i];
+				if(option.equals("--seed")){
+					seed = Long.parseLong(value);
+				} else if(option.equals("--first")){
+					firstRunSimNumber = Integer.parseInt(value);
+					if(firstRunSimNumber < 1){
+						System.err.println("Option --first needs to be 1 or more");
+						System.exit(1);
+					}
+				} else {
+					rngAlgorithm = value;
+				}
+			} else if(args[i].equals("--partial")){
+				writePartial = true;
+			} else if(args[i].equals("--stop-after")){
+				if(i + 1 == args.length){
+					System.err.println("Option --stop-after requires a value");
+					System.exit(1);
+				}
+				stopAfter = Integer.parseInt(args[++i]);
+				if(stopAfter < 1){
+					System.err.println("Option --stop-after needs to be 1 or more");
+					System.exit(1);
+				}
+			} else {
+				positionalArgs.add(args[i]);
+			}
+		}
 		
-		if(args.length > 0){
-			inputFilename = args[0];
+		if(positionalArgs.size() > 0){
+			inputFilename = positionalArgs.get(0);
 		}else{
 			System.err.println("Please specify a file to process");
 			System.exit(1);		
 		}
 		
-		if(args.length > 1){
-			simsToRun = Integer.parseInt(args[1]);
+		if(positionalArgs.size() > 1){
+			simsToRun = Integer.parseInt(positionalArgs.get(1));
 			System.out.println("Setting number of simulations to " + simsToRun);
 		} else {
 			System.out.println("Number of simulations defaulting to " + simsToRun);
 		}
 		
-		if(args.length > 2){
-			if(args[2].toLowerCase().equals("qc")){
+		if(positionalArgs.size() > 2){
+			if(positionalArgs.get(2).toLowerCase().equals("qc")){
 				qc = true;
 				System.out.println("Performing diagnostics QC on data");
-			} else if(args[2].toLowerCase().equals("random")){
+			} else if(positionalArgs.get(2).toLowerCase().equals("random")){
 				createRandomDataset = true;
 				qc = true;
 			} else {
@@ -66,161 +275,354 @@ public class Simulation {
 				System.exit(1);
 			}
 		}
-
 		
-		//  ***Read in data***	
-		System.out.println("Reading in file " + inputFilename);
+		if( ( (controlFilename != null) || paired ) && outputFormat.equals("columnar") ){
+			System.err.println("Options --control and --paired require text output (--output-format text or both)");
+			System.exit(1);
+		}
+		if(paired){
+			if(controlFilename != null){
+				System.err.println("Options --paired and --control may not be used together (--paired creates the control)");
+				System.exit(1);
+			}
+			if( createRandomDataset || (checkpointFilename != null) ){
+				System.err.println("Option --paired may not be used with 'random' or --checkpoint");
+				System.exit(1);
+			}
+		}
+		
+		if(numberPartitions > 1){
+			if( createRandomDataset || paired || (checkpointFilename != null) || (stopAfter > 0) || moments || writePartial ){
+				System.err.println("Option --partitions may not be used with 'random', --paired, --checkpoint, --stop-after, --moments or --partial");
+				System.exit(1);
+			}
+			if(!outputFormat.equals("text")){
+				System.err.println("Option --partitions requires text output (--output-format text)");
+				System.exit(1);
+			}
+		}
 		
-		Distribution features = new Distribution();
-		Distribution featuresValGt1 = new Distribution();   //Features with valencies greater than 1
-		Distribution valencies = new Distribution();
+		if(approximate){
+			if( createRandomDataset || paired || (checkpointFilename != null) || (numberPartitions > 1) || (stopAfter > 0) || (controlFilename != null) ){
+				System.err.println("Option --approximate may not be used with 'random', --paired, --checkpoint, --partitions, --stop-after or --control");
+				System.exit(1);
+			}
+			approximateSims = simsToRun;
+			if(approximateCheck > 0){
+				simsToRun = approximateCheck;
+				System.out.println("Checking the approximation against " + simsToRun + " simulations (approximate scores are for " + approximateSims + " simulations)");
+			} else if( qc || moments || writePartial ){    //Only written by the simulations
+				System.err.println("Option --approximate may not be used with 'QC', --moments, --quantiles or --partial (unless with --approximate-check)");
+				System.exit(1);
+			}
+		}
 		
-		HashMap<String, Double> observedInteractionsCounter = new HashMap<String, Double>();
+		if(checkpointFilename == null){
+			if( resume || (checkpointEvery > 0) || (checkpointMinutes > 0) ){
+				System.err.println("Options --resume, --checkpoint-every and --checkpoint-minutes require --checkpoint");
+				System.exit(1);
+			}
+		} else if( (checkpointEvery == 0) && (checkpointMinutes == 0) ){
+			checkpointMinutes = 30;    //Default
+		}
+		
+		//Simulations are run in rounds: a single round unless stopping early, in which case interactions are checked 
+		//for retirement after every round, or checkpointing, in which case progress may be saved after every round
+		int roundSize = simsToRun;
+		if(stopAfter > 0){
+			roundSize = ROUND_SIZE;    //Fixed, as retirement depends on it
+		} else if(checkpointFilename != null){
+			roundSize = Math.max(ROUND_SIZE, threads * 8);    //Keep the threads busy between checkpoints
+			if(checkpointEvery > 0){
+				roundSize = Math.min(roundSize, checkpointEvery);
+			}
+		}
+		threads = Math.min(threads, Math.max(Math.min(simsToRun, roundSize), 1));    //No point having idle workers
+		System.out.println("Running simulations on " + threads + " thread(s)");
+		if(stopAfter > 0){
+			System.out.println("Retiring interactions once their simulation score reaches " + stopAfter);
+		}
+
+		
+		//  ***Read in data***	
+		RunMetrics metrics = new RunMetrics();
+		metrics.startPhase("Read input");
 		FileIO dataIO = new FileIO();	
-		dataIO.inputData(inputFilename, features, valencies, observedInteractionsCounter, featuresValGt1, qc);
+		dataIO.setMetrics(metrics);
+		dataIO.setOutputOptions(compressionLevel, threads, outputFormat);
+		dataIO.setPairMemory(pairMemory);
+		Dataset dataset = loadDataset(dataIO, inputFilename, qc, threads, useSnapshot, numberPartitions > 1);
+		PairPartitions pairPartitions = null;
+		if(numberPartitions > 1){    //Only the first partition's interactions are indexed for now
+			pairPartitions = new PairPartitions(dataset, numberPartitions);
+			if(pairPartitions.size() < numberPartitions){
+				System.out.println("Only " + pairPartitions.size() + " partition(s) needed, as there are few pairs to divide");
+				numberPartitions = pairPartitions.size();
+			}
+			dataset.observedInteractions = pairPartitions.indexPartition(0);
+		}
+		
+		FeatureDictionary dictionary = dataset.dictionary;
+		Distribution features = dataset.features;
+		Distribution featuresValGt1 = dataset.featuresValGt1;   //Features with valencies greater than 1
+		Distribution valencies = dataset.valencies;
+		PairIndex observedInteractions = dataset.observedInteractions;
 		
 		int totalNumberFeatures = features.getSize();
 		int totalNumberComplexes = valencies.getSize();
 		
 		System.out.println("Dataset comprised " + totalNumberFeatures + " features distributed over " + totalNumberComplexes + " complexes (including N=1)");
+		
+		List<String[]> quantilePairs = null;
+		SimulationRun run = new SimulationRun(inputFilename, "Simulation", dataset, simsToRun, firstRunSimNumber, stopAfter, qc);
+		run.exactSampling = exactSampling;
+		if(moments){
+			quantilePairs = (quantilesFilename == null) ? new ArrayList<String[]>() : FileIO.readPairNames(quantilesFilename);
+			run.collectNullStatistics(quantilePairs);
+		}
 
 	
-		//  ***Perform the simulations***
-		String randomString = Utilities.makeRandomString();
-		int[] notAddedPoolResults = new int[simsToRun];
-		HashMap<String, Integer> compObsSimCounter = new HashMap<String, Integer>();  //Data structure to tally Obs Vs Sim
-		HashMap<String, Integer> simCumulativeInteractions = new HashMap<String, Integer>();  //Records cumulated interactions
-		for(String interaction : observedInteractionsCounter.keySet()){
-			simCumulativeInteractions.put(interaction, 0);
-			compObsSimCounter.put(interaction, 0);	
+		//  ***Resume from a checkpoint***
+		Checkpoint runState = new Checkpoint();    //Describes this run, and holds its tallies when checkpointing
+		File inputFile = new File(inputFilename);
+		runState.inputFileSize = inputFile.length();
+		runState.inputFileModified = inputFile.lastModified();
+		runState.numberFeatureIds = dictionary.size();
+		runState.numberInteractions = observedInteractions.size();
+		runState.simsToRun = simsToRun;
+		runState.firstRunSimNumber = firstRunSimNumber;
+		runState.stopAfter = stopAfter;
+		runState.qc = qc;
+		runState.createRandomDataset = createRandomDataset;
+		runState.nullStatistics = run.nullStatistics;
+		runState.exactSampling = exactSampling;
+		
+		Checkpoint savedState = null;
+		if(resume){
+			if(new File(checkpointFilename).exists()){
+				try {
+					savedState = Checkpoint.read(checkpointFilename);
+				} catch (IOException ioe) {
+					ioe.printStackTrace();
+					System.exit(1);
+				}
+				String difference = savedState.compareSettings(runState);
+				if(difference != null){
+					System.err.println("Cannot resume from checkpoint " + checkpointFilename + ", as " + difference);
+					System.exit(1);
+				}
+				if( (seed != null) && (seed != savedState.seed) ){
+					System.err.println("Cannot resume from checkpoint " + checkpointFilename + ", as it used seed " + savedState.seed);
+					System.exit(1);
+				}
+				seed = savedState.seed;
+				rngAlgorithm = savedState.rngAlgorithm;
+				System.out.println("Resuming after " + savedState.simsCompleted + " simulations from checkpoint " + checkpointFilename);
+			} else {
+				System.out.println("No checkpoint " + checkpointFilename + " found, starting from the beginning");
+			}
 		}
 		
-		HashMap<String, Integer> simFeaturesCounter = new HashMap<String, Integer>();  //Record number of times feature observed in simulation
-		for( String feature : features.getElements()){    //Initialize
-			simFeaturesCounter.put(feature, 0);		
+		
+		//  ***Perform the simulations***
+		if(seed == null){
+			seed = new Random().nextLong();
+		}
+		RandomStreams streams = null;
+		try {
+			streams = new RandomStreams(rngAlgorithm, seed);
+		} catch (IllegalArgumentException iae) {
+			System.err.println("Could not use random number generator " + rngAlgorithm + " (" + iae.getMessage() + ")");
+			System.exit(1);
+		}
+		if( !approximate || (approximateCheck > 0) ){
+			System.out.println("Running simulations " + firstRunSimNumber + " to " + (firstRunSimNumber + simsToRun - 1) + " with " + rngAlgorithm + " seed " + seed);
 		}
+		String randomString = Utilities.makeRandomString();    //Not seeded, so runs with the same seed do not overwrite each other's files
 		
-		HashMap<String, Integer> simFeaturesValGt1Counter = new HashMap<String, Integer>();  //Record number of times multi-valent feature observed in simulation
-		for( String feature : features.getElements()){    //Initialize
-			simFeaturesValGt1Counter.put(feature, 0);	
+		ApproximateNull approximateNull = null;
+		if(approximate){
+			metrics.startPhase("Approximate null");
+			System.out.println("Estimating the null distributions approximately");
+			approximateNull = new ApproximateNull(dataset);
+			dataIO.writeApproximateResults(inputFilename, approximateSims, dictionary, observedInteractions, approximateNull, randomString);
+			if(approximateCheck == 0){
+				metrics.finish(metricsFilename, inputFilename, 0, threads, seed);
+				System.out.println("Approximate results written");
+				return;
+			}
 		}
 		
+		List<SimulationRun> runs = new ArrayList<SimulationRun>();    //The dataset's run, followed by the control's if paired
+		runs.add(run);
+		if(savedState != null){    //Carry on from the checkpoint
+			run.restore(savedState);
+			randomString = savedState.randomString;
+			savedState = null;
+		}
+		run.startWorkers(threads, streams, createRandomDataset, randomString, metrics);
 		
-		for (int currentSimNumber = 1; currentSimNumber <= simsToRun; currentSimNumber++){	
-			
-			System.out.println("Simulation " + currentSimNumber);
-			
-			//Initialise data structures
-			HashMap<String, Double> simInteractionsDecrementer = new HashMap<String, Double>();  //Records simulated interactions		
-			for(String interaction : observedInteractionsCounter.keySet()){
-				simInteractionsDecrementer.put(interaction, observedInteractionsCounter.get(interaction));
+		if(paired){
+			Dataset controlDataset;
+			String controlName;
+			if(controlDatasetFilename == null){    //Simulate it from the dataset, as the random option would
+				metrics.startPhase("Create control");
+				System.out.println("Creating random control dataset");
+				controlDataset = run.createRandomDataset(streams.getControlStream());
+				controlName = inputFilename + ".RandomControl";
+			} else {
+				metrics.startPhase("Read control");
+				controlDataset = loadDataset(dataIO, controlDatasetFilename, false, threads, useSnapshot, false);
+				controlName = controlDatasetFilename;
 			}
-			
-			ArrayList<String> notAddedPool = new ArrayList<String>();    //To prevent biases arising from it not being possible to add a single feature multiple times to a given complex
-			Complex simComplex = new Complex();
-			ArrayList<String> randomDataset = new ArrayList<String>();  //For when createRandomDataset is 'true'			
-				if(qc){   //Organisation this way may cause duplication of code, but minimises number of times qc is evaluated							
-					for (int currentComplexNumber = 1; currentComplexNumber <= totalNumberComplexes; currentComplexNumber++){
-						int valency = Integer.parseInt(valencies.getRandomElement());    //Set sim complex valency
-						
-						//System.out.println("Complex: " + currentComplexNumber + "\tValency: " + valency);  //Comment out as required
-					
-						if( (valency == 1)  && !notAddedPool.isEmpty() ){    //No interactions, but select from pool
-							String poolFeatureToAdd = notAddedPool.get(0);
-							simFeaturesCounter.put(poolFeatureToAdd, simFeaturesCounter.get(poolFeatureToAdd) + 1);
-							notAddedPool.remove(0);	
-							randomDataset.add(currentComplexNumber + "\t" + poolFeatureToAdd);
-							//System.out.println(poolFeatureToAdd);  //Comment out as required
-						
-						}else if(valency == 1 ){    //No interactions, randomly select feature
-							String featureToAdd = features.getRandomElement();
-							simFeaturesCounter.put(featureToAdd, simFeaturesCounter.get(featureToAdd) + 1);
-							randomDataset.add(currentComplexNumber + "\t" + featureToAdd);
-							//System.out.println(featureToAdd);  //Comment out as required
-						
-						} else {    //Interaction needs 2 or more features
-							int added = 0;
-							if(!notAddedPool.isEmpty()){    //Add from the not added pool
-								String poolFeatureToAdd = notAddedPool.get(0);
-								simComplex.addFeature(poolFeatureToAdd);		
-								randomDataset.add(currentComplexNumber + "\t" + poolFeatureToAdd);
-								//System.out.println(poolFeatureToAdd);  //Comment out as required
-								notAddedPool.remove(0);
-								added++;		
-								simFeaturesCounter.put(poolFeatureToAdd, simFeaturesCounter.get(poolFeatureToAdd) + 1);
-								simFeaturesValGt1Counter.put(poolFeatureToAdd, simFeaturesValGt1Counter.get(poolFeatureToAdd) + 1);
+			System.out.println("Control dataset comprised " + controlDataset.features.getSize() + " features distributed over " 
+					+ controlDataset.valencies.getSize() + " complexes (including N=1)");
+			SimulationRun controlRun = new SimulationRun(controlName, "Control simulation", controlDataset, simsToRun, firstRunSimNumber, stopAfter, false);
+			controlRun.exactSampling = exactSampling;
+			if(moments){
+				controlRun.collectNullStatistics(quantilePairs);
+			}
+			controlRun.startWorkers(threads, streams, false, randomString, metrics);
+			runs.add(controlRun);
+		}
+		
+		runState.seed = seed;
+		runState.rngAlgorithm = rngAlgorithm;
+		runState.randomString = randomString;
+		int lastCheckpointSims = run.simsCompleted;
+		long lastCheckpointTime = System.nanoTime();
+		
+		int simsExpected = 0;
+		for(SimulationRun eachRun : runs){
+			simsExpected += eachRun.simsToRun - eachRun.simsCompleted;
+		}
+		metrics.startSimulations(simsExpected * numberPartitions);
+		ExecutorService workerPool = Executors.newFixedThreadPool(threads);    //Shared by the runs
+		try {
+			for(int partition = 0; partition < numberPartitions; partition++){
+				if(pairPartitions != null){
+					if(partition > 0){    //Simulate again from the first simulation, with only the next partition's interactions
+						run.startPartition(pairPartitions, partition);
+						run.startWorkers(threads, streams, createRandomDataset, randomString, metrics);
+					}
+					System.out.println("Partition " + (partition + 1) + " of " + numberPartitions + ": " + dataset.observedInteractions.size() 
+							+ " interactions (lower feature ids " + pairPartitions.getFirstFeature(partition) + " to " + (pairPartitions.getEndFeature(partition) - 1) + ")");
+				}
+				while(true){
+					List<SimulationRun> roundRuns = new ArrayList<SimulationRun>();
+					List<SimulationWorker> roundWorkers = new ArrayList<SimulationWorker>();
+					for(SimulationRun eachRun : runs){
+						if(!eachRun.isFinished()){
+							roundRuns.add(eachRun);
+							roundWorkers.addAll(eachRun.assignRound(roundSize));
+						}
+					}
+					if(roundRuns.isEmpty()){
+						break;
+					}
+				
+					for(Future<SimulationWorker> completedWorker : workerPool.invokeAll(roundWorkers)){
+						completedWorker.get();    //Re-throws any failure
+					}
+					for(SimulationRun eachRun : roundRuns){
+						eachRun.endRound();
+					}
+				
+					if( (checkpointFilename != null) && !run.isFinished() ){
+						long now = System.nanoTime();
+						if( ( (checkpointEvery > 0) && (run.simsCompleted - lastCheckpointSims >= checkpointEvery) ) || 
+								( (checkpointMinutes > 0) && (now - lastCheckpointTime >= checkpointMinutes * 60_000_000_000L) ) ){
+							run.saveTo(runState);
+							try {
+								runState.write(checkpointFilename);
+								System.out.println("Written checkpoint after " + run.simsCompleted + " simulations");
+							} catch (IOException ioe) {
+								System.err.println("Could not write checkpoint " + checkpointFilename + " (" + ioe.getMessage() + ")");
 							}
-									
-							do{
-								String featureToAdd = features.getRandomElement();
-								if(simComplex.addFeature(featureToAdd)){
-									randomDataset.add(currentComplexNumber + "\t" + featureToAdd);
-									//System.out.println(featureToAdd);  //Comment out as required
-									added++;	
-									simFeaturesCounter.put(featureToAdd, simFeaturesCounter.get(featureToAdd) + 1);
-									simFeaturesValGt1Counter.put(featureToAdd, simFeaturesValGt1Counter.get(featureToAdd) + 1);
-								} else {
-									notAddedPool.add(featureToAdd);					
-								}						
-							}while(added < valency);				
-						}			
-						simComplex.recordSimInterationResults(simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);	
-						simComplex.empty();
-
+							lastCheckpointSims = run.simsCompleted;
+							lastCheckpointTime = now;
+						}
 					}
-					
-				} else {    //Not performing QC diagnostics
-					
-					for (int currentComplexNumber = 1; currentComplexNumber <= totalNumberComplexes; currentComplexNumber++){
-											
-						int valency = Integer.parseInt(valencies.getRandomElement());    //Set sim complex valency
-						//System.out.println("Complex: " + currentComplexNumber + "\tValency: " + valency);  //Comment out as required
-						
-						if(valency == 1){
-							if(!notAddedPool.isEmpty() ){    //No interactions, remove 1 item from pool
-								notAddedPool.remove(0);
-							}						
-						} else {    //Interaction needs 2 or more features
-							int added = 0;
-							if(!notAddedPool.isEmpty()){    //Add from the not added pool
-								String poolFeatureToAdd = notAddedPool.get(0);
-								simComplex.addFeature(poolFeatureToAdd);
-								//System.out.println(poolFeatureToAdd);  //Comment out as required
-								notAddedPool.remove(0);
-								added++;			
-							}							
-							do{
-								String featureToAdd = features.getRandomElement();
-								if(simComplex.addFeature(featureToAdd)){
-									//System.out.println(featureToAdd);  //Comment out as required
-									added++;					
-								} else {
-									notAddedPool.add(featureToAdd);					
-								}						
-							}while(added < valency);				
-						}			
-						simComplex.recordSimInterationResults(simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);	
-						simComplex.empty();	
-					}					
-				}
-				notAddedPoolResults[currentSimNumber - 1] = notAddedPool.size();
-				if(createRandomDataset){
-					dataIO.createRandomDataset(inputFilename, currentSimNumber, randomString, randomDataset);
-				}
-			}	
-		
+				}
+				if(pairPartitions != null){
+					run.finish();
+					run.appendResults(dataIO, randomString);
+				}
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			System.exit(1);
+		} finally {
+			workerPool.shutdown();
+		}
+		for(SimulationRun eachRun : runs){    //Releases the worker counters before writing out
+			eachRun.finish();
+		}
+			
 			
 		// ***Write out the results***
 
 		System.out.println("Writing out results");
-		dataIO.writeResults(inputFilename, simsToRun, observedInteractionsCounter, simCumulativeInteractions, compObsSimCounter, notAddedPoolResults, randomString);
-		if(qc){
-			dataIO.writeQCResults(inputFilename, simsToRun, features, featuresValGt1, simFeaturesCounter, simFeaturesValGt1Counter, randomString);
-		}	
+		metrics.startPhase("Write output");
+		String resultsFilename = run.writeResults(dataIO, writePartial, seed, randomString);
+		if(paired){
+			controlFilename = runs.get(1).writeResults(dataIO, writePartial, seed, randomString);
+		}
+		if(approximateNull != null){
+			approximateNull.compare(run.simCumulativeInteractions, run.compObsSimCounter, run.simsCompleted);
+			dataIO.writeApproximateCheck(inputFilename, run.simsCompleted, dictionary, observedInteractions, approximateNull, 
+					run.simCumulativeInteractions, run.compObsSimCounter, randomString);
+		}
+		if(checkpointFilename != null){    //The run is complete, so will not need resuming
+			new File(checkpointFilename).delete();
+		}
+		if(controlFilename != null){
+			metrics.startPhase("Multiple testing correction");
+			System.out.println("Performing multiple testing correction");
+			MultipleTestingCorrection.correct(controlFilename, resultsFilename, window, compressionLevel, threads);
+		}
+		metrics.finish(metricsFilename, inputFilename, run.simsCompleted, threads, seed);
 		System.out.println("Simulations completed");
 	}
 	
 	
+	//Reads in the input file, or its binary snapshot if requested and up to date (writing the snapshot if not).  When
+	//partitioned, the complexes are kept but the pairs are not indexed, and the snapshot is not written.
+	private static Dataset loadDataset(FileIO dataIO, String inputFilename, boolean qc, int threads, boolean useSnapshot, boolean partitioned){
+		String snapshotFilename = DatasetSnapshot.getDefaultFilename(inputFilename);
+		if(useSnapshot){
+			try {
+				Dataset dataset = new Dataset();
+				dataset.indexPairs = !partitioned;
+				if(DatasetSnapshot.read(snapshotFilename, inputFilename, dataset)){
+					System.out.println("Read in snapshot " + snapshotFilename);
+					return dataset;
+				}
+			} catch (IOException ioe) {
+				System.err.println("Could not read snapshot " + snapshotFilename + " (" + ioe.getMessage() + "), reading input file instead");
+			}
+		}
+		
+		System.out.println("Reading in file " + inputFilename);
+		Dataset dataset = new Dataset(useSnapshot || partitioned);
+		dataset.indexPairs = !partitioned;
+		dataIO.inputData(inputFilename, dataset, qc, threads);
+		
+		if(useSnapshot && !partitioned){
+			try {
+				DatasetSnapshot.write(snapshotFilename, inputFilename, dataset);
+				System.out.println("Written snapshot " + snapshotFilename);
+			} catch (IOException ioe) {
+				System.err.println("Could not write snapshot " + snapshotFilename + " (" + ioe.getMessage() + ")");
+			}
+			dataset.complexStarts = null;    //Only kept for the snapshot, so release them for the simulations
+			dataset.complexFeatures = null;
+			dataset.keepComplexes = false;
+		}
+		return dataset;
+	}
+	
+	
 	
 
 }
@@ -0,0 +1,303 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.random.RandomGenerator;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * The simulations of one dataset: the run totals, the workers whose tallies are merged into them and,
+ * when stopping early (--stop-after), which interactions have been retired.  Simulation normally has a 
+ * single run, but in the paired mode (--paired) has a second for the random control dataset, and the
+ * workers of both share the same threads.  Each run takes its random numbers from the same streams 
+ * (see RandomStreams), so a run's results do not depend on whether it was paired.
+ * @author wingetts
+ *
+ */
+
+public class SimulationRun {
+
+	final String outputName;    //Results are written to [outputName].MonteCarloResults... 
+	final String label;    //Names the simulations in the progress messages
+	final Dataset dataset;
+	final int simsToRun;
+	final int firstRunSimNumber;
+	final int stopAfter;
+	final boolean qc;
+	
+	int simsCompleted = 0;
+	int[] notAddedPoolResults;
+	int[] compObsSimCounter;  //Data structure to tally Obs Vs Sim (indexed by PairIndex number)
+	long[] simCumulativeInteractions;  //Records cumulated interactions
+	int[] simFeaturesCounter;  //Record number of times feature observed in simulation (indexed by feature id)
+	int[] simFeaturesValGt1Counter;  //Record number of times multi-valent feature observed in simulation
+	int[] interactionSims = null;    //When stopping early, the number of simulations each interaction was followed for
+	boolean[] retired = null;
+	int undecidedInteractions;
+	NullStatistics nullStatistics = null;    //When collecting the extra null statistics
+	boolean exactSampling = false;    //Whether to draw each complex's features without replacement, rather than using the pool
+	
+	private final List<SimulationWorker> workers = new ArrayList<SimulationWorker>();
+	private RandomGenerator.JumpableGenerator nextStream;    //Start of the next simulation's random numbers
+	private int roundSims = 0;    //Simulations in the current round
+	private int roundThreads = 0;    //Workers used in the current round
+	private ResultsWriter partitionedResults = null;    //Results file written to by each partition in turn (see appendResults)
+	
+	
+	public SimulationRun(String outputName, String label, Dataset dataset, int simsToRun, int firstRunSimNumber, int stopAfter, boolean qc){
+		this.outputName = outputName;
+		this.label = label;
+		this.dataset = dataset;
+		this.simsToRun = simsToRun;
+		this.firstRunSimNumber = firstRunSimNumber;
+		this.stopAfter = stopAfter;
+		this.qc = qc;
+		
+		notAddedPoolResults = new int[simsToRun];
+		simFeaturesCounter = new int[dataset.dictionary.size()];
+		simFeaturesValGt1Counter = new int[dataset.dictionary.size()];
+		allocateInteractionTallies();
+	}
+	
+	
+	private void allocateInteractionTallies(){
+		int numberInteractions = dataset.observedInteractions.size();
+		compObsSimCounter = new int[numberInteractions];
+		simCumulativeInteractions = new long[numberInteractions];
+		undecidedInteractions = numberInteractions;
+		if(stopAfter > 0){
+			interactionSims = new int[numberInteractions];
+			retired = new boolean[numberInteractions];
+		}
+	}
+	
+	
+	//In the partitioned mode (--partitions), replaces the dataset's observed interactions with those of the next 
+	//partition, once the previous partition is finished and its rows appended.  The simulations then start again 
+	//from the first, with the same random numbers, so the feature tallies and pool sizes are the same each time.
+	public void startPartition(PairPartitions pairPartitions, int partition){
+		compObsSimCounter = null;    //Released before the next partition is indexed
+		simCumulativeInteractions = null;
+		dataset.observedInteractions = null;
+		dataset.observedInteractions = pairPartitions.indexPartition(partition);
+		allocateInteractionTallies();
+		simsCompleted = 0;
+		Arrays.fill(simFeaturesCounter, 0);
+		Arrays.fill(simFeaturesValGt1Counter, 0);
+	}
+	
+	
+	//Appends the rows of the partition's interactions to the results file, creating it for the first partition
+	public void appendResults(FileIO dataIO, String randomString){
+		try {
+			if(partitionedResults == null){
+				partitionedResults = dataIO.openResults(FileIO.getResultsFilename(outputName, randomString), interactionSims != null);
+			}
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			System.exit(1);
+		}
+		dataIO.writeResultRows(partitionedResults, simsCompleted, dataset.dictionary, dataset.observedInteractions, 
+				simCumulativeInteractions, compObsSimCounter, interactionSims);
+	}
+	
+	
+	//Collects the variance of every interaction's simulated counts, and quantiles for the named pairs (before 
+	//restore and startWorkers)
+	public void collectNullStatistics(List<String[]> quantilePairs){
+		int[] sketchedInteractions = NullStatistics.findInteractions(quantilePairs, dataset.dictionary, dataset.observedInteractions);
+		nullStatistics = new NullStatistics(dataset.observedInteractions.size(), sketchedInteractions);
+	}
+	
+	
+	//Carries on from a checkpoint, which must describe this run
+	public void restore(Checkpoint savedState){
+		simsCompleted = savedState.simsCompleted;
+		simCumulativeInteractions = savedState.simCumulativeInteractions;
+		compObsSimCounter = savedState.compObsSimCounter;
+		simFeaturesCounter = savedState.simFeaturesCounter;
+		simFeaturesValGt1Counter = savedState.simFeaturesValGt1Counter;
+		System.arraycopy(savedState.notAddedPoolResults, 0, notAddedPoolResults, 0, simsCompleted);
+		nullStatistics = savedState.nullStatistics;
+		if(stopAfter > 0){
+			interactionSims = savedState.interactionSims;
+			for(int index = 0; index < retired.length; index++){
+				if(interactionSims[index] > 0){
+					retired[index] = true;
+					undecidedInteractions--;
+				}
+			}
+		}
+	}
+	
+	
+	//Points the checkpoint at this run's totals
+	public void saveTo(Checkpoint runState){
+		runState.simsCompleted = simsCompleted;
+		runState.simCumulativeInteractions = simCumulativeInteractions;
+		runState.compObsSimCounter = compObsSimCounter;
+		runState.interactionSims = interactionSims;
+		runState.simFeaturesCounter = simFeaturesCounter;
+		runState.simFeaturesValGt1Counter = simFeaturesValGt1Counter;
+		runState.notAddedPoolResults = notAddedPoolResults;
+		runState.nullStatistics = nullStatistics;
+	}
+	
+	
+	//Creates the workers, once any checkpoint has been restored
+	public void startWorkers(int threads, RandomStreams streams, boolean createRandomDataset, String randomString, RunMetrics metrics){
+		PartnerIndex partners = new PartnerIndex(dataset.observedInteractions, dataset.dictionary.size(), retired);    //Shared (read-only) by the workers
+		for(int i = 0; i < threads; i++){
+			SimulationWorker worker = new SimulationWorker(firstRunSimNumber, dataset.dictionary, dataset.features, dataset.valencies, 
+					dataset.observedInteractions, partners, notAddedPoolResults, qc, createRandomDataset, outputName, randomString);
+			worker.setMetrics(metrics);
+			worker.setLabel(label);
+			if(nullStatistics != null){
+				worker.setNullStatistics(nullStatistics.emptyCopy());
+			}
+			if(exactSampling){
+				worker.setSampler(new WeightedSampler(dataset.features));
+			}
+			workers.add(worker);
+		}
+		nextStream = streams.getStream(firstRunSimNumber + simsCompleted);
+	}
+	
+	
+	//Simulates a random dataset from this run's dataset, as the random option would write to a file (after 
+	//startWorkers, but before the first round)
+	public Dataset createRandomDataset(RandomGenerator stream){
+		return workers.get(0).createRandomDataset(stream);
+	}
+	
+	
+	public boolean isFinished(){
+		return (simsCompleted == simsToRun) || ( (stopAfter > 0) && (undecidedInteractions == 0) );
+	}
+	
+	
+	//Splits the next roundSize simulations (or fewer, if fewer remain) into contiguous blocks, one per worker, 
+	//and returns the workers to run
+	public List<SimulationWorker> assignRound(int roundSize){
+		roundSims = Math.min(roundSize, simsToRun - simsCompleted);
+		roundThreads = Math.min(workers.size(), roundSims);
+		int firstSimNumber = firstRunSimNumber + simsCompleted;
+		for(int i = 0; i < roundThreads; i++){
+			int workerSims = roundSims / roundThreads + ( (i < roundSims % roundThreads) ? 1 : 0 );
+			int lastSimNumber = firstSimNumber + workerSims - 1;
+			workers.get(i).assignSimulations(firstSimNumber, lastSimNumber, nextStream.copy());
+			for(int j = 0; j < workerSims; j++){
+				nextStream.jump();
+			}
+			firstSimNumber = lastSimNumber + 1;
+		}
+		return workers.subList(0, roundThreads);
+	}
+	
+	
+	//Merges the round's workers in simulation order, so the totals do not depend on which finished first,
+	//then retires the interactions whose p-values are now known well enough
+	public void endRound(){
+		for(SimulationWorker worker : workers.subList(0, roundThreads)){
+			worker.mergeInto(simCumulativeInteractions, compObsSimCounter, simFeaturesCounter, simFeaturesValGt1Counter, retired);
+			if(nullStatistics != null){
+				nullStatistics.mergeFrom(worker.nullStatistics, retired);
+			}
+		}
+		simsCompleted += roundSims;
+		
+		if(stopAfter > 0){
+			int retiredThisRound = 0;
+			for(int index = 0; index < retired.length; index++){
+				if(!retired[index] && (compObsSimCounter[index] >= stopAfter) ){
+					retired[index] = true;
+					interactionSims[index] = simsCompleted;
+					retiredThisRound++;
+				}
+			}
+			undecidedInteractions -= retiredThisRound;
+			System.out.println(simsCompleted + " simulations completed, " + undecidedInteractions + " interactions undecided");
+			
+			if( (retiredThisRound > 0) && (undecidedInteractions > 0) ){    //Only test the undecided interactions from now on
+				PartnerIndex partners = new PartnerIndex(dataset.observedInteractions, dataset.dictionary.size(), retired);
+				for(SimulationWorker worker : workers){
+					worker.setPartners(partners);
+				}
+			}
+		}
+	}
+	
+	
+	//Releases the workers, and fills in the number of simulations for the interactions never retired
+	public void finish(){
+		workers.clear();
+		if(stopAfter > 0){
+			for(int index = 0; index < retired.length; index++){
+				if(!retired[index]){
+					interactionSims[index] = simsCompleted;
+				}
+			}
+			if(simsCompleted < simsToRun){
+				System.out.println("All interactions retired after " + simsCompleted + " simulations");
+				notAddedPoolResults = Arrays.copyOf(notAddedPoolResults, simsCompleted);
+			}
+		}
+	}
+	
+	
+	//Writes the results, partial results (if requested), null statistics (if collected) and QC results (if performing QC), 
+	//returning the name of the results file
+	public String writeResults(FileIO dataIO, boolean writePartial, long seed, String randomString){
+		if(partitionedResults != null){    //The rows have already been appended, partition by partition
+			try {
+				partitionedResults.close();
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+				System.exit(1);
+			}
+			dataIO.writeUnallocatedPools(outputName, notAddedPoolResults, randomString);
+		} else {
+			dataIO.writeResults(outputName, simsCompleted, dataset.dictionary, dataset.observedInteractions, simCumulativeInteractions, 
+					compObsSimCounter, interactionSims, notAddedPoolResults, randomString);
+		}
+		if(writePartial){
+			dataIO.writePartialResults(outputName, simsCompleted, seed, firstRunSimNumber, dataset.dictionary, dataset.observedInteractions, 
+					simCumulativeInteractions, compObsSimCounter, interactionSims, randomString);
+		}
+		if(nullStatistics != null){
+			dataIO.writeNullStatistics(outputName, simsCompleted, dataset.dictionary, dataset.observedInteractions, 
+					simCumulativeInteractions, interactionSims, nullStatistics, randomString);
+		}
+		if(qc){
+			dataIO.writeQCResults(outputName, simsCompleted, dataset.dictionary, dataset.features, dataset.featuresValGt1, 
+					simFeaturesCounter, simFeaturesValGt1Counter, randomString);
+		}
+		return FileIO.getResultsFilename(outputName, randomString);
+	}
+
+}
@@ -0,0 +1,286 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * A long-running simulation server, listening on localhost only, which keeps the datasets it has 
+ * read in memory (see DatasetCache) so that repeated runs on the same input skip JVM start-up and 
+ * reading the input.  Jobs are run one at a time, in the order submitted, on a shared pool of worker
+ * threads.
+ * 
+ * POST /jobs                 Submit a job; the body holds Simulation's arguments (e.g. "input.txt.gz 1000 --seed 1")
+ * GET  /jobs                 List the jobs
+ * GET  /jobs/[id]            A job's state and progress
+ * GET  /jobs/[id]/progress   Streams a line each time more simulations complete, until the job ends
+ * GET  /jobs/[id]/results    The job's results file, once finished
+ * GET  /datasets             The cached datasets
+ * @author wingetts
+ *
+ */
+
+public class SimulationServer {
+	
+	static final int DEFAULT_PORT = 8765;
+	
+	private final DatasetCache cache;
+	private final int threads;
+	private final ExecutorService workerPool;    //Runs the simulations of every job
+	private final ExecutorService jobQueue = Executors.newSingleThreadExecutor();    //Runs the jobs in turn
+	private final LinkedHashMap<Integer, ServerJob> jobs = new LinkedHashMap<Integer, ServerJob>();
+	private int nextJobId = 1;
+	
+	
+	public static void main(String[] args) {
+		
+		System.out.println("Starting Anaconda Monte Carlo Simulation server");
+		
+		int port = DEFAULT_PORT;
+		int threads = 1;
+		long cacheMB = Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024);    //Default: half the maximum heap
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("--port") || args[i].equals("--threads") || args[i].equals("--cache-mb")){
+				if(i + 1 == args.length){
+					System.err.println("Option " + args[i] + " requires a value");
+					System.exit(1);
+				}
+				String option = args[i];
+				int value = Integer.parseInt(args[++i]);
+				if(option.equals("--port")){
+					port = value;
+					if( (port < 1) || (port > 65535) ){
+						System.err.println("Option --port needs to be between 1 and 65535");
+						System.exit(1);
+					}
+				} else if(option.equals("--threads")){
+					threads = value;
+					if(threads < 1){
+						System.err.println("Option --threads needs to be 1 or more");
+						System.exit(1);
+					}
+				} else {
+					cacheMB = value;
+					if(cacheMB < 1){
+						System.err.println("Option --cache-mb needs to be 1 or more");
+						System.exit(1);
+					}
+				}
+			} else {
+				System.err.println("Option " + args[i] + " not recognised");
+				System.exit(1);
+			}
+		}
+		
+		SimulationServer server = new SimulationServer(threads, cacheMB * 1024 * 1024);
+		try {
+			server.start(port);
+		} catch (IOException ioe) {
+			System.err.println("Could not listen on port " + port + " (" + ioe.getMessage() + ")");
+			System.exit(1);
+		}
+		System.out.println("Listening on http://localhost:" + port + " with " + threads + " thread(s) and a " + cacheMB + "MB dataset cache");
+	}
+	
+	
+	public SimulationServer(int threads, long cacheBytes){
+		this.threads = threads;
+		cache = new DatasetCache(cacheBytes, threads);
+		workerPool = Executors.newFixedThreadPool(threads);
+	}
+	
+	
+	public void start(int port) throws IOException {
+		HttpServer httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/", this::handle);
+		httpServer.setExecutor(Executors.newCachedThreadPool());    //Progress streams stay open while their jobs run
+		httpServer.start();
+	}
+	
+	
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/");
+			if(path[0].equals("datasets") && (path.length == 1) && method.equals("GET")){
+				respond(exchange, 200, cache.toJson());
+			} else if(path[0].equals("jobs") && (path.length == 1) && method.equals("POST")){
+				submit(exchange);
+			} else if(path[0].equals("jobs") && (path.length == 1) && method.equals("GET")){
+				List<String> jobList = new ArrayList<String>();
+				for(ServerJob job : getJobs()){
+					jobList.add(job.toJson());
+				}
+				respond(exchange, 200, "[" + String.join(",\n", jobList) + "]\n");
+			} else if(path[0].equals("jobs") && (path.length <= 3) && method.equals("GET")){
+				ServerJob job = getJob(path[1]);
+				if(job == null){
+					respond(exchange, 404, error("No job " + path[1]));
+				} else if(path.length == 2){
+					respond(exchange, 200, job.toJson() + "\n");
+				} else if(path[2].equals("progress")){
+					streamProgress(exchange, job);
+				} else if(path[2].equals("results")){
+					sendResults(exchange, job);
+				} else {
+					respond(exchange, 404, error("Not found"));
+				}
+			} else {
+				respond(exchange, 404, error("Not found"));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			if(exchange.getResponseCode() == -1){    //Nothing sent yet
+				respond(exchange, 500, error(e.toString()));
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	
+	private void submit(HttpExchange exchange) throws IOException {
+		String arguments;
+		try (InputStream body = exchange.getRequestBody()){
+			arguments = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+		}
+		ServerJob job;
+		synchronized(jobs){
+			try {
+				job = new ServerJob(nextJobId, arguments, cache, workerPool, threads);
+			} catch (IllegalArgumentException iae) {
+				respond(exchange, 400, error(iae.getMessage()));
+				return;
+			}
+			jobs.put(nextJobId, job);
+			nextJobId++;
+		}
+		jobQueue.execute(job);
+		System.out.println("Queued job " + job.id + ": " + job.arguments);
+		respond(exchange, 201, job.toJson() + "\n");
+	}
+	
+	
+	//Writes a line each time more simulations complete (or the job starts), and a final line once the job ends
+	private void streamProgress(HttpExchange exchange, ServerJob job) throws IOException, InterruptedException {
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, 0);    //Chunked
+		try (OutputStream out = exchange.getResponseBody()){
+			String seenState = null;
+			int seenSimsCompleted = -1;
+			while(true){
+				String state = job.getState();
+				int simsCompleted = job.getSimsCompleted();
+				String line;
+				if(state.equals("finished")){
+					line = "Finished: " + job.getResultsFilename();
+				} else if(state.equals("failed")){
+					line = "Failed: " + job.getError();
+				} else if(state.equals("queued")){
+					line = "Queued";
+				} else {
+					line = "Completed " + simsCompleted + " of " + job.simsToRun + " simulations";
+				}
+				out.write( (line + "\n").getBytes(StandardCharsets.UTF_8) );
+				out.flush();
+				if(job.isDone()){
+					break;
+				}
+				seenState = state;
+				seenSimsCompleted = simsCompleted;
+				job.awaitChange(seenState, seenSimsCompleted);
+			}
+		}
+	}
+	
+	
+	private void sendResults(HttpExchange exchange, ServerJob job) throws IOException {
+		if(!job.getState().equals("finished")){
+			respond(exchange, 409, error("Job " + job.id + " is " + job.getState()));
+			return;
+		}
+		File resultsFile = new File(job.getResultsFilename());
+		exchange.getResponseHeaders().set("Content-Type", "application/gzip");
+		exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + resultsFile.getName() + "\"");
+		exchange.sendResponseHeaders(200, resultsFile.length());
+		try (OutputStream out = exchange.getResponseBody()){
+			Files.copy(resultsFile.toPath(), out);
+		}
+	}
+	
+	
+	private List<ServerJob> getJobs(){
+		synchronized(jobs){
+			return new ArrayList<ServerJob>(jobs.values());
+		}
+	}
+	
+	
+	private ServerJob getJob(String id){
+		try {
+			synchronized(jobs){
+				return jobs.get(Integer.parseInt(id));
+			}
+		} catch (NumberFormatException nfe) {
+			return null;
+		}
+	}
+	
+	
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()){
+			out.write(bytes);
+		}
+	}
+	
+	
+	private static String error(String message){
+		return "{\"error\": \"" + escape(message) + "\"}\n";
+	}
+	
+	
+	static String escape(String text){
+		return text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+}
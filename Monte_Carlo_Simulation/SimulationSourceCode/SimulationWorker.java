@@ -0,0 +1,415 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+import java.util.concurrent.Callable;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * Runs a contiguous range of simulations on a single thread.  Each worker owns its
+ * own complex, rejection pool, random number generator and interaction counters, so
+ * workers never share mutable state.  The counters are merged once all workers have
+ * finished (see mergeInto).
+ * @author wingetts
+ *
+ */
+
+public class SimulationWorker implements Callable<SimulationWorker> {
+
+	private static final double MIN_FAST_PATH_SHARE = 0.05;    //Share of complexes a valency needs for its fast path to be used
+
+	private final int firstRunSimNumber;    //Number of the run's first simulation (its pool result is notAddedPoolResults[0])
+	private int firstSimNumber;
+	private int lastSimNumber;
+	private RandomGenerator.JumpableGenerator nextStream;    //Positioned at the start of the next simulation's random number stream
+	private RandomGenerator rand;    //The current simulation's stream
+	private final Distribution features;
+	private final Distribution valencies;
+	private final FeatureDictionary dictionary;
+	private final PairIndex observedInteractions;
+	private PartnerIndex partners;    //Replaced between rounds when pairs are retired (see Simulation)
+	private final int[] notAddedPoolResults;    //Shared between workers, but each worker only writes to its own simulations
+	private final boolean qc;
+	private final boolean createRandomDataset;
+	private final Complex simComplex;    //Re-used for every simulated complex
+	private final IntQueue notAddedPool = new IntQueue();    //To prevent biases arising from it not being possible to add a single feature multiple times to a given complex
+	private WeightedSampler sampler = null;    //Set to draw each complex's features without replacement instead of using the pool
+	private final boolean dimerPath;    //Whether to simulate dimers and trimers without simComplex (when not performing QC)
+	private final boolean trimerPath;
+
+	int[] compObsSimCounter;  //Data structure to tally Obs Vs Sim (indexed by PairIndex number, as are the other interaction counters)
+	long[] simCumulativeInteractions;  //Records cumulated interactions
+	int[] simInteractionsDecrementer;  //Records simulated interactions, reset from the observed counts for each simulation
+	int[] simFeaturesCounter;  //Record number of times feature observed in simulation (indexed by feature id)
+	int[] simFeaturesValGt1Counter;  //Record number of times multi-valent feature observed in simulation
+	
+	private final RandomDatasetWriter randomDatasetWriter;    //For when createRandomDataset is 'true'
+	private RandomDatasetBuilder datasetBuilder = null;    //Only while creating a random dataset in memory
+	private RunMetrics metrics = null;    //Records each simulation, if set
+	NullStatistics nullStatistics = null;    //Collected for each simulation, if set
+	private String label = "Simulation";    //Names the simulations in the progress messages
+	private long featureDraws;    //Of the last simulation
+	private long rejectedDraws;
+	private int peakPoolSize;
+
+
+	public SimulationWorker(int firstRunSimNumber, FeatureDictionary dictionary, Distribution features, Distribution valencies,
+			PairIndex observedInteractions, PartnerIndex partners, int[] notAddedPoolResults, boolean qc,
+			boolean createRandomDataset, String inputFilename, String randomString){
+		this.firstRunSimNumber = firstRunSimNumber;
+		this.features = features;
+		this.valencies = valencies;
+		this.dictionary = dictionary;
+		this.observedInteractions = observedInteractions;
+		this.partners = partners;
+		this.notAddedPoolResults = notAddedPoolResults;
+		this.qc = qc;
+		this.createRandomDataset = createRandomDataset;
+
+		simCumulativeInteractions = new long[observedInteractions.size()];
+		compObsSimCounter = new int[observedInteractions.size()];
+		simInteractionsDecrementer = new int[observedInteractions.size()];
+		simFeaturesCounter = new int[dictionary.size()];
+		simFeaturesValGt1Counter = new int[dictionary.size()];
+		simComplex = new Complex(valencies.getMaxElement(), dictionary.size());
+		
+		int[] valencyCounts = valencies.getElementsCounter(Math.max(valencies.getMaxElement() + 1, 4));
+		dimerPath = valencyCounts[2] >= MIN_FAST_PATH_SHARE * valencies.getSize();
+		trimerPath = valencyCounts[3] >= MIN_FAST_PATH_SHARE * valencies.getSize();
+		randomDatasetWriter = createRandomDataset ? new RandomDatasetWriter(inputFilename, randomString, dictionary) : null;
+	}
+	
+	
+	//Sets the simulations run by the next call, and clears the tallies of any previous call (which should already have been merged).
+	//firstStream is the random number stream of simulation firstSimNumber (see RandomStreams), and is used up by the call.
+	public void assignSimulations(int firstSimNumber, int lastSimNumber, RandomGenerator.JumpableGenerator firstStream){
+		this.firstSimNumber = firstSimNumber;
+		this.lastSimNumber = lastSimNumber;
+		nextStream = firstStream;
+		Arrays.fill(simCumulativeInteractions, 0);
+		Arrays.fill(compObsSimCounter, 0);
+		Arrays.fill(simFeaturesCounter, 0);
+		Arrays.fill(simFeaturesValGt1Counter, 0);
+		if(nullStatistics != null){
+			nullStatistics.clear();
+		}
+	}
+	
+	
+	public void setPartners(PartnerIndex partners){
+		this.partners = partners;
+	}
+	
+	
+	public void setMetrics(RunMetrics metrics){
+		this.metrics = metrics;
+	}
+	
+	
+	public void setLabel(String label){
+		this.label = label;
+	}
+	
+	
+	public void setNullStatistics(NullStatistics nullStatistics){
+		this.nullStatistics = nullStatistics;
+	}
+	
+	
+	//For exact sampling (--sampling exact), which needs a sampler for each worker
+	public void setSampler(WeightedSampler sampler){
+		this.sampler = sampler;
+	}
+
+
+	public SimulationWorker call(){
+		for (int currentSimNumber = firstSimNumber; currentSimNumber <= lastSimNumber; currentSimNumber++){
+			runSimulation(currentSimNumber);
+		}
+		if(createRandomDataset){    //So that a checkpoint never covers a partly written dataset
+			randomDatasetWriter.awaitWritten();
+		}
+		return this;
+	}
+
+
+	private void runSimulation(int currentSimNumber){
+
+		long startTime = System.nanoTime();
+		RunMetrics.SimulationEvent event = (metrics == null) ? null : metrics.startSimulation(currentSimNumber);
+		rand = nextStream.copyAndJump();
+
+		if(createRandomDataset){
+			randomDatasetWriter.startDataset(currentSimNumber);
+		}
+		int poolSize = simulateComplexes(qc);
+		notAddedPoolResults[currentSimNumber - firstRunSimNumber] = poolSize;
+		if(nullStatistics != null){
+			nullStatistics.addSimulation(observedInteractions.getObservedCounts(), simInteractionsDecrementer);
+		}
+		if(createRandomDataset){
+			randomDatasetWriter.finishDataset();
+		}
+		if(metrics != null){
+			metrics.endSimulation(label, currentSimNumber, event, System.nanoTime() - startTime, valencies.getSize(), featureDraws, rejectedDraws, poolSize, peakPoolSize);
+		}
+	}
+	
+	
+	//Simulates a random dataset from stream, as the random option writes to a file, but returns it instead.  The 
+	//worker's tallies are left with meaningless values, so this should be called before assignSimulations.
+	public Dataset createRandomDataset(RandomGenerator stream){
+		rand = stream;
+		datasetBuilder = new RandomDatasetBuilder(dictionary, valencies.getMaxElement());
+		simulateComplexes(true);
+		Dataset dataset = datasetBuilder.finishDataset();
+		datasetBuilder = null;
+		return dataset;
+	}
+	
+	
+	//Simulates every complex of one dataset, drawing from rand and adding the interactions formed to the 
+	//tallies (and to the feature tallies when performing QC).  Returns the size of the not added pool at the end.
+	private int simulateComplexes(boolean qc){
+		if(sampler != null){
+			return simulateComplexesExactly(qc);
+		}
+
+		int totalNumberComplexes = valencies.getSize();
+		this.featureDraws = 0;    //Counted here by the dimer and trimer paths, and in the locals below by the general loop
+		this.rejectedDraws = 0;
+		long featureDraws = 0;
+		long rejectedDraws = 0;    //Draws of a feature already in the complex, which go to the not added pool
+
+		//Initialise data structures
+		int[] observedCounts = observedInteractions.getObservedCounts();
+		System.arraycopy(observedCounts, 0, simInteractionsDecrementer, 0, observedCounts.length);
+
+		notAddedPool.clear();
+		if(qc){   //Organisation this way may cause duplication of code, but minimises number of times qc is evaluated
+			for (int currentComplexNumber = 1; currentComplexNumber <= totalNumberComplexes; currentComplexNumber++){
+				int valency = valencies.getRandomElement(rand);    //Set sim complex valency
+
+				if( (valency == 1)  && !notAddedPool.isEmpty() ){    //No interactions, but select from pool
+					int poolFeatureToAdd = notAddedPool.remove();
+					simFeaturesCounter[poolFeatureToAdd]++;
+					addRandomDatasetRow(currentComplexNumber, poolFeatureToAdd);
+
+				}else if(valency == 1 ){    //No interactions, randomly select feature
+					int featureToAdd = features.getRandomElement(rand);
+					featureDraws++;
+					simFeaturesCounter[featureToAdd]++;
+					addRandomDatasetRow(currentComplexNumber, featureToAdd);
+
+				} else {    //Interaction needs 2 or more features
+					int added = 0;
+					if(!notAddedPool.isEmpty()){    //Add from the not added pool
+						int poolFeatureToAdd = notAddedPool.remove();
+						simComplex.addFeature(poolFeatureToAdd);
+						addRandomDatasetRow(currentComplexNumber, poolFeatureToAdd);
+						added++;
+						simFeaturesCounter[poolFeatureToAdd]++;
+						simFeaturesValGt1Counter[poolFeatureToAdd]++;
+					}
+
+					do{
+						int featureToAdd = features.getRandomElement(rand);
+						featureDraws++;
+						if(simComplex.addFeature(featureToAdd)){
+							addRandomDatasetRow(currentComplexNumber, featureToAdd);
+							added++;
+							simFeaturesCounter[featureToAdd]++;
+							simFeaturesValGt1Counter[featureToAdd]++;
+						} else {
+							notAddedPool.add(featureToAdd);
+							rejectedDraws++;
+						}
+					}while(added < valency);
+				}
+				simComplex.recordSimInterationResults(partners, observedInteractions, simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+				simComplex.empty();
+			}
+
+		} else {    //Not performing QC diagnostics
+
+			for (int currentComplexNumber = 1; currentComplexNumber <= totalNumberComplexes; currentComplexNumber++){
+
+				int valency = valencies.getRandomElement(rand);    //Set sim complex valency
+
+				if(valency == 1){
+					if(!notAddedPool.isEmpty() ){    //No interactions, remove 1 item from pool
+						notAddedPool.remove();
+					}
+					
+				} else if( (valency == 2) && dimerPath ){
+					simulateDimer();
+					continue;
+				} else if( (valency == 3) && trimerPath ){
+					simulateTrimer();
+					continue;
+				} else {    //Interaction needs 2 or more features
+					int added = 0;
+					if(!notAddedPool.isEmpty()){    //Add from the not added pool
+						int poolFeatureToAdd = notAddedPool.remove();
+						simComplex.addFeature(poolFeatureToAdd);
+						added++;
+					}
+					do{
+						int featureToAdd = features.getRandomElement(rand);
+						featureDraws++;
+						if(simComplex.addFeature(featureToAdd)){
+							added++;
+						} else {
+							notAddedPool.add(featureToAdd);
+							rejectedDraws++;
+						}
+					}while(added < valency);
+				}
+				simComplex.recordSimInterationResults(partners, observedInteractions, simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+				simComplex.empty();
+			}
+		}
+		this.featureDraws += featureDraws;
+		this.rejectedDraws += rejectedDraws;
+		peakPoolSize = notAddedPool.getPeakSize();
+		return notAddedPool.size();
+	}
+	
+	
+	//As simulateComplexes, but draws the features of each complex together, weighted by abundance and without 
+	//replacement, so no draw is rejected and there is no pool.  A complex can have at most as many features as 
+	//there are distinct features, whereas the pool would never fill a larger one.
+	private int simulateComplexesExactly(boolean qc){
+		int totalNumberComplexes = valencies.getSize();
+		int distinctFeatures = sampler.getDistinct();
+		long featureDraws = 0;
+		
+		int[] observedCounts = observedInteractions.getObservedCounts();
+		System.arraycopy(observedCounts, 0, simInteractionsDecrementer, 0, observedCounts.length);
+		
+		for (int currentComplexNumber = 1; currentComplexNumber <= totalNumberComplexes; currentComplexNumber++){
+			int valency = Math.min(valencies.getRandomElement(rand), distinctFeatures);
+			for(int i = 0; i < valency; i++){
+				int featureToAdd = sampler.draw(rand);
+				simComplex.addFeature(featureToAdd);
+				addRandomDatasetRow(currentComplexNumber, featureToAdd);
+				if(qc){
+					simFeaturesCounter[featureToAdd]++;
+					if(valency > 1){
+						simFeaturesValGt1Counter[featureToAdd]++;
+					}
+				}
+			}
+			sampler.restore();
+			featureDraws += valency;
+			simComplex.recordSimInterationResults(partners, observedInteractions, simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+			simComplex.empty();
+		}
+		this.featureDraws = featureDraws;
+		this.rejectedDraws = 0;
+		peakPoolSize = 0;
+		return 0;
+	}
+	
+	
+	//Simulates a complex of valency 2 as the general loop of simulateComplexes would (taking the same random 
+	//numbers), but comparing the features directly rather than adding them to simComplex
+	private void simulateDimer(){
+		int feature1 = firstFeature();
+		int feature2 = features.getRandomElement(rand);
+		featureDraws++;
+		while(feature2 == feature1){
+			notAddedPool.add(feature2);
+			rejectedDraws++;
+			feature2 = features.getRandomElement(rand);
+			featureDraws++;
+		}
+		Complex.recordSimDimerResults(feature1, feature2, partners, observedInteractions, simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+	}
+	
+	
+	private void simulateTrimer(){
+		int feature1 = firstFeature();
+		int feature2 = features.getRandomElement(rand);
+		featureDraws++;
+		while(feature2 == feature1){
+			notAddedPool.add(feature2);
+			rejectedDraws++;
+			feature2 = features.getRandomElement(rand);
+			featureDraws++;
+		}
+		int feature3 = features.getRandomElement(rand);
+		featureDraws++;
+		while( (feature3 == feature1) || (feature3 == feature2) ){
+			notAddedPool.add(feature3);
+			rejectedDraws++;
+			feature3 = features.getRandomElement(rand);
+			featureDraws++;
+		}
+		Complex.recordSimTrimerResults(feature1, feature2, feature3, partners, observedInteractions, simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+	}
+	
+	
+	//The first feature of a complex: from the not added pool if possible, otherwise drawn (so always added)
+	private int firstFeature(){
+		if(!notAddedPool.isEmpty()){
+			return notAddedPool.remove();
+		}
+		featureDraws++;
+		return features.getRandomElement(rand);
+	}
+
+
+	private void addRandomDatasetRow(int complexNumber, int feature){
+		if(datasetBuilder != null){
+			datasetBuilder.addRow(complexNumber, feature);
+		} else if(createRandomDataset){
+			randomDatasetWriter.addRow(complexNumber, feature);
+		}
+	}
+
+
+	//Adds this worker's tallies to the run totals.  Workers are merged in simulation order, so the totals
+	//do not depend on which worker finished first.  Retired interactions (may be null) keep the totals they
+	//had when they were retired.
+	public void mergeInto(long[] totalSimCumulativeInteractions, int[] totalCompObsSimCounter,
+			int[] totalSimFeaturesCounter, int[] totalSimFeaturesValGt1Counter, boolean[] retired){
+		for(int i = 0; i < totalCompObsSimCounter.length; i++){
+			if( (retired != null) && retired[i] ){
+				continue;
+			}
+			totalSimCumulativeInteractions[i] += simCumulativeInteractions[i];
+			totalCompObsSimCounter[i] += compObsSimCounter[i];
+		}
+		if(qc){
+			for(int i = 0; i < totalSimFeaturesCounter.length; i++){
+				totalSimFeaturesCounter[i] += simFeaturesCounter[i];
+				totalSimFeaturesValGt1Counter[i] += simFeaturesValGt1Counter[i];
+			}
+		}
+	}
+
+}
@@ -41,5 +41,19 @@ public class Utilities {
 		}			
 		return randomString;	
 	}
+	
+	
+	//Writes the decimal digits of a (non-negative) value into the buffer at position, returning the position after them
+	public static int writeInt(byte[] buffer, int position, int value){
+		int digits = 1;
+		for(int remaining = value / 10; remaining > 0; remaining /= 10){
+			digits++;
+		}
+		for(int i = position + digits - 1; i >= position; i--){
+			buffer[i] = (byte)('0' + (value % 10));
+			value /= 10;
+		}
+		return position + digits;
+	}
 
 }
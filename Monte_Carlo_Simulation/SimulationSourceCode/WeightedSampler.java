@@ -0,0 +1,109 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * Draws the distinct values of a Distribution weighted by their counts, without replacement: each value 
+ * drawn is removed until restore is called, so the values of a complex can be drawn one after another 
+ * without ever drawing a value twice (the exact sampling mode of Simulation).  The weights are held in a 
+ * Fenwick tree, so a draw and its removal each take O(log n) for n distinct values.
+ * @author wingetts
+ *
+ */
+
+public class WeightedSampler {
+
+	private final int[] values;    //As in the Distribution
+	private final int[] counts;
+	private final long[] tree;    //Fenwick tree of the current weights (1-based)
+	private final int topStep;    //Largest power of two not above the number of values
+	private long totalWeight;
+	private int[] drawn = new int[16];    //Positions of the values drawn since the last restore
+	private int numberDrawn = 0;
+	
+	
+	public WeightedSampler(Distribution distribution){
+		values = distribution.values;
+		counts = distribution.counts;
+		int n = values.length;
+		tree = new long[n + 1];
+		for(int i = 1; i <= n; i++){
+			tree[i] += counts[i - 1];
+			int parent = i + (i & -i);
+			if(parent <= n){
+				tree[parent] += tree[i];
+			}
+		}
+		topStep = (n == 0) ? 0 : Integer.highestOneBit(n);
+		totalWeight = distribution.totalElements;
+	}
+	
+	
+	//Number of distinct values, i.e. the most that can be drawn before restoring
+	public int getDistinct(){
+		return values.length;
+	}
+	
+	
+	//Draws a value not drawn since the last restore, with probability proportional to its count
+	public int draw(RandomGenerator rand){
+		long target = rand.nextLong(totalWeight);
+		int position = 0;    //Descend the tree to the last position whose prefix weight is not above target
+		for(int step = topStep; step > 0; step >>= 1){
+			int next = position + step;
+			if( (next < tree.length) && (tree[next] <= target) ){
+				position = next;
+				target -= tree[next];
+			}
+		}
+		update(position, -counts[position]);
+		if(numberDrawn == drawn.length){
+			drawn = Arrays.copyOf(drawn, numberDrawn * 2);
+		}
+		drawn[numberDrawn++] = position;
+		return values[position];
+	}
+	
+	
+	//Puts back the values drawn since the last restore
+	public void restore(){
+		for(int i = 0; i < numberDrawn; i++){
+			update(drawn[i], counts[drawn[i]]);
+		}
+		numberDrawn = 0;
+	}
+	
+	
+	private void update(int position, long delta){
+		for(int i = position + 1; i < tree.length; i += i & -i){
+			tree[i] += delta;
+		}
+		totalWeight += delta;
+	}
+
+}
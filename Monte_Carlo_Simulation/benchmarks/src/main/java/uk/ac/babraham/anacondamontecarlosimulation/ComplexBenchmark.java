@@ -0,0 +1,176 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.random.RandomGenerator;
+import java.util.random.RandomGeneratorFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * Benchmarks adding features to a simulated complex and recording the observed interactions it forms
+ * (the inner loop of every simulation), for a range of complex sizes and numbers of features.
+ * @author wingetts
+ *
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ComplexBenchmark {
+
+	private static final int BATCH = 1024;    //Complexes per invocation
+
+	@Param({"2", "3", "10", "50"})
+	int valency;
+
+	@Param({"1000", "20000"})
+	int numberFeatures;
+
+	Distribution features;
+	PairIndex observedInteractions;
+	PartnerIndex partners;
+	Complex complex;
+	int[] candidates;    //Pre-drawn features, so the benchmark does not time the sampling
+	int[] distinctCandidates;    //Pre-drawn complexes, each of valency different features
+	int[] simInteractionsDecrementer;
+	long[] simCumulativeInteractions;
+	int[] compObsSimCounter;
+
+
+	@Setup
+	public void setup(){
+		features = new Distribution();
+		for(int feature = 0; feature < numberFeatures; feature++){
+			features.addElement(feature, Math.max(1, (int)Math.round(100_000 / Math.pow(feature + 1, 1.1))));
+		}
+		features.activateElements();
+		RandomGenerator rand = RandomGeneratorFactory.of(RandomStreams.DEFAULT_ALGORITHM).create(1);
+		
+		//Observe interactions from complexes of the same valency
+		PairCounter counter = new PairCounter();
+		Complex observed = new Complex(valency, numberFeatures);
+		for(int i = 0; i < 20_000; i++){
+			while(observed.getValency() < Math.min(valency, numberFeatures)){
+				observed.addFeature(features.getRandomElement(rand));
+			}
+			observed.interactionsCounterIncrementer(counter);
+			observed.empty();
+		}
+		observedInteractions = new PairIndex(counter);
+		partners = new PartnerIndex(observedInteractions, numberFeatures);
+		
+		complex = new Complex(valency, numberFeatures);
+		candidates = new int[BATCH * valency * 2];
+		for(int i = 0; i < candidates.length; i++){
+			candidates[i] = features.getRandomElement(rand);
+		}
+		distinctCandidates = new int[BATCH * valency];
+		for(int i = 0; i < BATCH; i++){
+			while(complex.getValency() < Math.min(valency, numberFeatures)){
+				complex.addFeature(features.getRandomElement(rand));
+			}
+			System.arraycopy(complex.featuresArray, 0, distinctCandidates, i * valency, complex.getValency());
+			complex.empty();
+		}
+		simInteractionsDecrementer = observedInteractions.getObservedCounts().clone();
+		simCumulativeInteractions = new long[observedInteractions.size()];
+		compObsSimCounter = new int[observedInteractions.size()];
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int addFeatures(){
+		int added = 0;
+		int next = 0;
+		for(int i = 0; i < BATCH; i++){
+			for(int j = 0; j < valency; j++){
+				if(complex.addFeature(candidates[next++])){
+					added++;
+				}
+			}
+			complex.empty();
+		}
+		return added;
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long addFeaturesAndRecordInteractions(){
+		int next = 0;
+		for(int i = 0; i < BATCH; i++){
+			for(int j = 0; j < valency; j++){
+				complex.addFeature(candidates[next++]);
+			}
+			complex.recordSimInterationResults(partners, observedInteractions, simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+			complex.empty();
+		}
+		return simCumulativeInteractions[0];
+	}
+
+
+	//The dimer and trimer paths of SimulationWorker, which compare the features directly (other valencies 
+	//use a Complex, as in addFeaturesAndRecordInteractions)
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long recordInteractionsDirectly(){
+		int next = 0;
+		for(int i = 0; i < BATCH; i++){
+			if(valency == 2){
+				Complex.recordSimDimerResults(distinctCandidates[next], distinctCandidates[next + 1], partners, observedInteractions, 
+						simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+			} else if(valency == 3){
+				Complex.recordSimTrimerResults(distinctCandidates[next], distinctCandidates[next + 1], distinctCandidates[next + 2], 
+						partners, observedInteractions, simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+			} else {
+				for(int j = 0; j < valency; j++){
+					complex.addFeature(distinctCandidates[next + j]);
+				}
+				complex.recordSimInterationResults(partners, observedInteractions, simInteractionsDecrementer, simCumulativeInteractions, compObsSimCounter);
+				complex.empty();
+			}
+			next += valency;
+		}
+		return simCumulativeInteractions[0];
+	}
+
+}
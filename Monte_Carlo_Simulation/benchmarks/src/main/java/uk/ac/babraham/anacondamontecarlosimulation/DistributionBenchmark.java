@@ -0,0 +1,92 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.random.RandomGenerator;
+import java.util.random.RandomGeneratorFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * Benchmarks drawing from a Distribution's alias table, for distributions of different sizes 
+ * (the valency distribution has a few distinct values, the features distribution tens of thousands).
+ * @author wingetts
+ *
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DistributionBenchmark {
+
+	private static final int BATCH = 1024;    //Draws per invocation
+
+	@Param({"10", "20000", "1000000"})
+	int distinctValues;
+
+	@Param({"Xoshiro256PlusPlus", "L64X128MixRandom", "Random"})
+	String generator;
+
+	Distribution distribution;
+	RandomGenerator rand;
+
+
+	@Setup
+	public void setup(){
+		distribution = new Distribution();
+		for(int value = 0; value < distinctValues; value++){
+			distribution.addElement(value, Math.max(1, (int)Math.round(1_000_000 / Math.pow(value + 1, 1.1))));
+		}
+		distribution.activateElements();
+		rand = RandomGeneratorFactory.of(generator).create(1);
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long getRandomElement(){
+		long sum = 0;
+		for(int i = 0; i < BATCH; i++){
+			sum += distribution.getRandomElement(rand);
+		}
+		return sum;
+	}
+
+}
@@ -0,0 +1,96 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * Benchmarks reading an input file (FileIO.inputData) written by SyntheticDataset, on 1 and 4 threads.
+ * Use e.g. -p reads=10000000 for the larger sizes.
+ * @author wingetts
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InputBenchmark {
+
+	@Param({"1000000"})
+	long reads;
+
+	@Param({"20000"})
+	int numberFeatures;
+
+	@Param({"mixed"})
+	String valencyProfile;
+
+	@Param({"1", "4"})
+	int threads;
+
+	File inputFile;
+
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		inputFile = File.createTempFile("synthetic", ".txt.gz");
+		inputFile.deleteOnExit();
+		SyntheticDataset.write(inputFile.getPath(), reads, numberFeatures, valencyProfile, 1);
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		inputFile.delete();
+	}
+
+
+	@Benchmark
+	public Dataset inputData(){
+		Dataset dataset = new Dataset();
+		new FileIO().inputData(inputFile.getPath(), dataset, false, threads);
+		return dataset;
+	}
+
+}
@@ -0,0 +1,99 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * Benchmarks a whole simulation (sampling every complex, then recording its interactions) of a 
+ * SyntheticDataset, for each valency profile and a small and large number of features.  Run with
+ * -prof gc to see the allocation rate.
+ * @author wingetts
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SimulationBenchmark {
+
+	@Param({"1000000"})
+	long reads;
+
+	@Param({"1000", "20000"})
+	int numberFeatures;
+
+	@Param({"dimers", "mixed", "broad"})
+	String valencyProfile;
+
+	Dataset dataset;
+	PartnerIndex partners;
+	SimulationWorker worker;
+	RandomStreams streams = new RandomStreams(RandomStreams.DEFAULT_ALGORITHM, 1);
+	int simNumber = 0;
+
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		File inputFile = File.createTempFile("synthetic", ".txt.gz");
+		try {
+			SyntheticDataset.write(inputFile.getPath(), reads, numberFeatures, valencyProfile, 1);
+			dataset = new Dataset();
+			new FileIO().inputData(inputFile.getPath(), dataset, false, 1);
+		} finally {
+			inputFile.delete();
+		}
+		partners = new PartnerIndex(dataset.observedInteractions, dataset.dictionary.size());
+		worker = new SimulationWorker(1, dataset.dictionary, dataset.features, dataset.valencies, dataset.observedInteractions, 
+				partners, new int[1], false, false, null, null);
+	}
+
+
+	@Benchmark
+	public SimulationWorker simulation(){
+		simNumber++;
+		worker.assignSimulations(1, 1, streams.getStream(simNumber));    //A different simulation each time, counted as the first
+		return worker.call();
+	}
+
+}
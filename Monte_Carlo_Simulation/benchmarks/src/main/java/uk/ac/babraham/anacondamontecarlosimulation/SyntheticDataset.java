@@ -0,0 +1,189 @@
+package uk.ac.babraham.anacondamontecarlosimulation;
+
+import java.io.IOException;
+import java.util.random.RandomGenerator;
+import java.util.random.RandomGeneratorFactory;
+import java.util.zip.Deflater;
+
+/**
+###################################################################################
+###################################################################################
+##This file is Copyright (C) 2019, Steven Wingett (steven.wingett@babraham.ac.uk)##
+##                                                                               ##
+##                                                                               ##
+##This file is part of CloseCall.                                                ##
+##                                                                               ##
+##CloseCall is free software: you can redistribute it and/or modify              ##
+##it under the terms of the GNU General Public License as published by           ##
+##the Free Software Foundation, either version 3 of the License, or              ##
+##(at your option) any later version.                                            ##
+##                                                                               ##
+##CloseCall is distributed in the hope that it will be useful,                   ##
+##but WITHOUT ANY WARRANTY; without even the implied warranty of                 ##
+##MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the                  ##
+##GNU General Public License for more details.                                   ##
+##                                                                               ##
+##You should have received a copy of the GNU General Public License              ##
+##along with CloseCall.  If not, see <http://www.gnu.org/licenses/>.             ##
+###################################################################################
+###################################################################################
+*/
+
+/**
+ * Writes a synthetic, but realistically shaped, input file for the simulation, so that benchmarks 
+ * can be repeated on datasets of a known size.  Feature abundances follow a Zipf distribution 
+ * (exponent 1.1) and complex valencies follow one of a few profiles, drawn from a seeded generator 
+ * so the same arguments always give the same file.  The output is gzip (BGZF) compressed.
+ * 
+ * Usage: SyntheticDataset [--reads N] [--features N] [--valencies dimers|mixed|broad] [--seed S] [Output file]
+ * (N may end in K or M, e.g. --reads 10M)
+ * @author wingetts
+ *
+ */
+
+public class SyntheticDataset {
+
+	public static final String[] VALENCY_PROFILES = {"dimers", "mixed", "broad"};
+	
+	
+	public static void main(String[] args) {
+		long reads = 1_000_000;
+		int numberFeatures = 20_000;
+		String valencyProfile = "mixed";
+		long seed = 1;
+		String outputFilename = null;
+		
+		for(int i = 0; i < args.length; i++){
+			if(args[i].startsWith("--")){
+				if(i + 1 == args.length){
+					System.err.println("Option " + args[i] + " requires a value");
+					System.exit(1);
+				}
+				String option = args[i];
+				String value = args[++i];
+				if(option.equals("--reads")){
+					reads = parseCount(value);
+				} else if(option.equals("--features")){
+					numberFeatures = (int)parseCount(value);
+				} else if(option.equals("--valencies")){
+					valencyProfile = value;
+				} else if(option.equals("--seed")){
+					seed = Long.parseLong(value);
+				} else {
+					System.err.println("Option " + option + " not recognised");
+					System.exit(1);
+				}
+			} else {
+				outputFilename = args[i];
+			}
+		}
+		
+		if(outputFilename == null){
+			outputFilename = "synthetic." + reads + "." + numberFeatures + "." + valencyProfile + ".txt.gz";
+		}
+		
+		try {
+			System.out.println("Writing " + reads + " reads (" + numberFeatures + " features, " + valencyProfile + " valencies) to " + outputFilename);
+			write(outputFilename, reads, numberFeatures, valencyProfile, seed);
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			System.exit(1);
+		} catch (IllegalArgumentException iae) {
+			System.err.println(iae.getMessage());
+			System.exit(1);
+		}
+	}
+	
+	
+	//Accepts e.g. 1000, 10K or 10M
+	private static long parseCount(String value){
+		String upperCase = value.toUpperCase();
+		if(upperCase.endsWith("K")){
+			return Long.parseLong(upperCase.substring(0, upperCase.length() - 1)) * 1_000;
+		} else if(upperCase.endsWith("M")){
+			return Long.parseLong(upperCase.substring(0, upperCase.length() - 1)) * 1_000_000;
+		}
+		return Long.parseLong(value);
+	}
+	
+	
+	//Writes complexes until at least the requested number of reads have been written
+	public static void write(String outputFilename, long reads, int numberFeatures, String valencyProfile, long seed) throws IOException {
+		Distribution features = new Distribution();
+		for(int feature = 0; feature < numberFeatures; feature++){
+			features.addElement(feature, Math.max(1, (int)Math.round(1_000_000 / Math.pow(feature + 1, 1.1))));
+		}
+		features.activateElements();
+		Distribution valencies = getValencies(valencyProfile);
+		
+		RandomGenerator rand = RandomGeneratorFactory.of(RandomStreams.DEFAULT_ALGORITHM).create(seed);
+		Complex complex = new Complex(valencies.getMaxElement(), numberFeatures);
+		ResultsWriter out = new ResultsWriter(outputFilename, Deflater.DEFAULT_COMPRESSION, Runtime.getRuntime().availableProcessors());
+		out.write("Read_ID\tBarcode_ID\tChromosome\tFeature_Start\tFeature_End\tFeature_Strand\tFeature_ID\tFeature_Name\n");
+		
+		long readId = 0;
+		for(long barcode = 1; readId < reads; barcode++){
+			int valency = Math.min(valencies.getRandomElement(rand), numberFeatures);
+			while(complex.getValency() < valency){
+				complex.addFeature(features.getRandomElement(rand));
+			}
+			for(int i = 0; i < valency; i++){
+				int feature = complex.featuresArray[i];
+				long start = 1 + ((feature * 7919L) % 100_000_000);
+				readId++;
+				out.writeLong(readId);
+				out.write('\t');
+				out.writeLong(barcode);
+				out.write("\tchr");
+				out.writeLong(1 + (feature % 22));
+				out.write('\t');
+				out.writeLong(start);
+				out.write('\t');
+				out.writeLong(start + 999);
+				out.write( (feature % 2 == 0) ? "\t+\tENSG" : "\t-\tENSG" );
+				writePadded(out, feature);
+				out.write("\tGene");
+				writePadded(out, feature);
+				out.write('\n');
+			}
+			complex.empty();
+		}
+		out.close();
+	}
+	
+	
+	private static void writePadded(ResultsWriter out, int value){
+		for(long limit = 10_000_000_000L; limit > 1; limit /= 10){
+			if(value < limit / 10){
+				out.write('0');
+			}
+		}
+		out.writeLong(value);
+	}
+	
+	
+	//Valency histograms (number of complexes per 100, or per 1000 for "broad")
+	private static Distribution getValencies(String valencyProfile){
+		Distribution valencies = new Distribution();
+		if(valencyProfile.equals("dimers")){    //Mostly single features, dimers and trimers
+			int[] counts = {0, 40, 35, 15, 6, 3, 1};
+			for(int valency = 1; valency < counts.length; valency++){
+				valencies.addElement(valency, counts[valency]);
+			}
+		} else if(valencyProfile.equals("mixed")){    //As dimers, with a few large complexes
+			int[][] counts = { {1, 40}, {2, 30}, {3, 15}, {4, 6}, {5, 4}, {8, 2}, {20, 1}, {50, 1}, {100, 1} };
+			for(int[] count : counts){
+				valencies.addElement(count[0], count[1]);
+			}
+		} else if(valencyProfile.equals("broad")){    //Power law up to valency 200
+			for(int valency = 1; valency <= 200; valency++){
+				valencies.addElement(valency, Math.max(1, (int)Math.round(1000.0 / ((double)valency * valency))));
+			}
+		} else {
+			throw new IllegalArgumentException("Valency profile '" + valencyProfile + "' not recognised, should be one of " + String.join(", ", VALENCY_PROFILES));
+		}
+		valencies.activateElements();
+		return valencies;
+	}
+
+}